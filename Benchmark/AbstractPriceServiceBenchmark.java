@@ -0,0 +1,92 @@
+package vn.edu.topica.eco.api.middleware.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import vn.edu.topica.eco.api.middleware.cache.PriceCacheStore;
+import vn.edu.topica.eco.api.middleware.model.magento.course.CoursePrice;
+import vn.edu.topica.eco.api.middleware.model.magento.course.MagentoCourse;
+import vn.edu.topica.eco.api.middleware.service.v1.impl.PriceServiceImpl;
+import vn.edu.topica.eco.api.middleware.standin.LatencyProfile;
+import vn.edu.topica.eco.api.middleware.standin.StandIns;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*PriceServiceImpl on a catalogue page of pageSize courses, the cache state is set up by the subclasses.
+ * updateCoursePrice/cacheCoursePrice are the converter paths, updateMagentoCoursePrices/
+ * cacheMagentoCoursePrices the typed batch paths they are compared against */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public abstract class AbstractPriceServiceBenchmark {
+
+  @Param({"20", "200", "2000"})
+  int pageSize;
+
+  @Param({"false", "true"})
+  boolean asyncRefresh;
+
+  @Param({"0", "5ms"})
+  String magentoLatency;
+
+  protected PriceCacheStore priceCacheStore;
+  protected PriceServiceImpl priceService;
+  protected List<MagentoCourse> courses;
+  protected List<CoursePrice> prices;
+  protected List<String> skus;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    priceCacheStore = new PriceCacheStore(StandIns.cacheManager());
+    priceService = new PriceServiceImpl(
+      StandIns.priceRepository(LatencyProfile.parse(magentoLatency)), priceCacheStore, StandIns.cacheMetrics(),
+      StandIns.magentoGuards(), asyncRefresh, 100, 200);
+    courses = StandIns.courses(pageSize);
+    skus = StandIns.skus(0, pageSize);
+    prices = new ArrayList<>(pageSize);
+    for (MagentoCourse course : courses) {
+      CoursePrice price = new CoursePrice();
+      price.setSku(course.getSku());
+      price.setOriginalPrice(course.getPrice());
+      price.setDiscountPrice(course.getFinalPrice());
+      prices.add(price);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    priceService.shutdown();
+  }
+
+  @Benchmark
+  public List<MagentoCourse> updateCoursePrice() throws Exception {
+    priceService.updateCoursePrice(courses);
+    return courses;
+  }
+
+  @Benchmark
+  public List<MagentoCourse> updateMagentoCoursePrices() throws Exception {
+    priceService.updateMagentoCoursePrices(courses);
+    return courses;
+  }
+
+  @Benchmark
+  public void cacheCoursePrice() {
+    priceService.cacheCoursePrice(courses);
+  }
+
+  @Benchmark
+  public void cacheMagentoCoursePrices() {
+    priceService.cacheMagentoCoursePrices(courses);
+  }
+
+  /*cachePriceData() is private, updateExpiredPrices() is its only caller: one Magento call then
+   * one write of pageSize prices */
+  @Benchmark
+  public void cachePriceData() throws Exception {
+    priceService.updateExpiredPrices(skus);
+  }
+}
@@ -0,0 +1,24 @@
+package vn.edu.topica.eco.api.middleware.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/*Run the service layer benchmarks with the gc profiler, so every result reports throughput,
+ * latency percentiles (SampleTime mode) and allocation rate (gc.alloc.rate.norm).
+ * Accepts the usual JMH command line, e.g. "PriceServiceBenchmark -p pageSize=200" */
+public class BenchmarkRunner {
+
+  public static void main(String[] args) throws Exception {
+    CommandLineOptions commandLine = new CommandLineOptions(args);
+    ChainedOptionsBuilder options = new OptionsBuilder()
+      .parent(commandLine)
+      .addProfiler(GCProfiler.class);
+    if (commandLine.getIncludes().isEmpty()) {
+      options.include(BenchmarkRunner.class.getPackage().getName() + ".*Benchmark");
+    }
+    new Runner(options.build()).run();
+  }
+}
@@ -0,0 +1,17 @@
+package vn.edu.topica.eco.api.middleware.benchmark;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Setup;
+import vn.edu.topica.eco.api.middleware.constant.CacheConst;
+
+/*PriceServiceImpl with every price cached but expired, so each page triggers a Magento refresh.
+ * A refresh replaces expired prices with fresh ones, so they are expired again before every call.
+ * The setup time is not measured, but it adds timer overhead: compare these results with each other,
+ * not with PriceServiceBenchmark */
+public class ExpiredPriceServiceBenchmark extends AbstractPriceServiceBenchmark {
+
+  @Setup(Level.Invocation)
+  public void expireCache() {
+    priceCacheStore.putAll(prices, System.currentTimeMillis() - CacheConst.CACHED_COURSE_PRICE_TTL - 1);
+  }
+}
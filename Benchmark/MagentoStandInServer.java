@@ -0,0 +1,385 @@
+package vn.edu.topica.eco.api.middleware.benchmark;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import lombok.extern.slf4j.Slf4j;
+import vn.edu.topica.eco.api.middleware.controller.ApiSteps;
+import vn.edu.topica.eco.api.middleware.controller.StreamingJson;
+import vn.edu.topica.eco.api.middleware.standin.LatencyProfile;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/*Embedded HTTP stand-in for Magento, serving recorded Magento payloads with a latency profile and an
+ * error rate per route. Point the Magento base url of the middleware at getBaseUrl() to run
+ * CourseServiceImpl and PriceServiceImpl end to end offline. Latency and errors are drawn from one
+ * seeded Random per route, so the same seed and the same request order give the same run.
+ *
+ * The payloads are Magento responses, not the middleware responses ApiSteps saves under
+ * src/test/resources. They are recorded by the stand-in itself: with recordFrom(upstreamUrl), a
+ * request no route matches is forwarded to a real Magento and its response is returned. A 200
+ * response to a cart, wishlist, owned-courses or price call is saved below resourceDir/magento/recorded,
+ * with its token fields masked like ApiSteps masks access_token, and added as a route, both in memory
+ * and as a line of resourceDir/recorded.routes; other responses are only forwarded. Recorded routes
+ * match the exact path, widen the regex of the ids (cart id, customer id) in the routes file before
+ * replaying other requests with it. Request headers such as Authorization are forwarded but never saved.
+ *
+ * Routes are "METHOD path-regex resource [latency=...] [errorRate=0.01] [errorStatus=503]", one per line
+ * of a routes file, e.g.
+ *   GET ^/rest/V1/guest-carts/[^/]+/totals$ magento/guest-cart.json latency=p50=5ms,p99=80ms errorRate=0.01
+ * withDefaultRoutes() maps the cart, wishlist, owned-courses and price calls to the files below
+ * resourceDir/magento, skipping the ones not recorded yet; adjust the paths to the ones the
+ * repositories call if they differ.
+ *
+ * Run standalone: MagentoStandInServer port resourceDir [routesFile] [seed]
+ * Record:         MagentoStandInServer record port resourceDir magentoBaseUrl */
+@Slf4j
+public class MagentoStandInServer {
+
+  private static final String CUSTOMER_CART_PATH = "^/rest/V1/carts/[^/]+/totals$";
+  private static final String GUEST_CART_PATH = "^/rest/V1/guest-carts/[^/]+/totals$";
+  private static final String WISHLIST_PATH = "^/rest/V1/wishlist/[^/]+$";
+  private static final String OWNED_COURSES_PATH = "^/rest/V1/courses/owned$";
+  private static final String PRICES_PATH = "^/rest/V1/courses/prices$";
+  /*Only these calls are recorded, the payloads of other calls may hold customer data */
+  private static final List<Pattern> RECORDABLE_PATHS = Arrays.asList(
+    Pattern.compile(CUSTOMER_CART_PATH), Pattern.compile(GUEST_CART_PATH), Pattern.compile(WISHLIST_PATH),
+    Pattern.compile(OWNED_COURSES_PATH), Pattern.compile(PRICES_PATH));
+  /*Token fields masked at any depth of a recorded payload */
+  private static final StreamingJson SCRUBBER = new StreamingJson(new JsonFactory(),
+    ImmutableSet.of(ApiSteps.ACCESS_TOKEN, "token"));
+
+  private final HttpServer server;
+  private final ExecutorService executor;
+  private final Path resourceDir;
+  private final long seed;
+  private final List<Route> routes = new CopyOnWriteArrayList<>();
+  private final AtomicLong unmatchedCount = new AtomicLong();
+  private volatile String upstreamBaseUrl;
+
+  /*@param port, 0 for any free port, directory of the recorded payloads, number of worker threads,
+   * seed of the latency and error samples */
+  public MagentoStandInServer(int port, Path resourceDir, int threads, long seed) throws IOException {
+    this.resourceDir = resourceDir;
+    this.seed = seed;
+    this.server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+    this.executor = Executors.newFixedThreadPool(threads,
+      new ThreadFactoryBuilder().setNameFormat("magento-stand-in-%d").setDaemon(true).build());
+    server.setExecutor(executor);
+    server.createContext("/", this::handle);
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length > 0 && "record".equals(args[0])) {
+      MagentoStandInServer recorder = new MagentoStandInServer(Integer.parseInt(args[1]), Paths.get(args[2]), 16, 42);
+      recorder.withRoutes(recorder.getRecordedRoutesFile()).recordFrom(args[3]).start();
+      log.info("Magento recorder listening on {}, forwarding to {}", recorder.getBaseUrl(), args[3]);
+      return;
+    }
+    MagentoStandInServer server = new MagentoStandInServer(Integer.parseInt(args[0]), Paths.get(args[1]), 64,
+      args.length > 3 ? Long.parseLong(args[3]) : 42);
+    if (args.length > 2) {
+      server.withRoutes(Paths.get(args[2]));
+    } else {
+      server.withDefaultRoutes(LatencyProfile.parse("p50=5ms,p99=80ms"), 0);
+    }
+    server.start();
+    log.info("Magento stand-in listening on {}", server.getBaseUrl());
+  }
+
+  /*Cart, wishlist, owned courses and prices of the recorded payloads, all with the same latency
+   * and error rate. A payload not recorded yet is skipped with a warning, its requests get 404 */
+  public MagentoStandInServer withDefaultRoutes(LatencyProfile latency, double errorRate) throws IOException {
+    routeIfRecorded("GET", CUSTOMER_CART_PATH, "magento/customer-cart.json", latency, errorRate);
+    routeIfRecorded("GET", GUEST_CART_PATH, "magento/guest-cart.json", latency, errorRate);
+    routeIfRecorded("GET", WISHLIST_PATH, "magento/wishlist.json", latency, errorRate);
+    routeIfRecorded("GET", OWNED_COURSES_PATH, "magento/owned-courses.json", latency, errorRate);
+    routeIfRecorded("POST", PRICES_PATH, "magento/prices.json", latency, errorRate);
+    return this;
+  }
+
+  /*Forward requests no route matches to a real Magento and record its 200 responses to the cart,
+   * wishlist, owned-courses and price calls as routes
+   * @param base url of Magento, e.g. https://magento.example.com */
+  public MagentoStandInServer recordFrom(String upstreamBaseUrl) {
+    this.upstreamBaseUrl = upstreamBaseUrl.endsWith("/")
+      ? upstreamBaseUrl.substring(0, upstreamBaseUrl.length() - 1)
+      : upstreamBaseUrl;
+    return this;
+  }
+
+  /*@return routes file the recorded routes are appended to */
+  public Path getRecordedRoutesFile() {
+    return resourceDir.resolve("recorded.routes");
+  }
+
+  /*Add the routes of a routes file, blank lines and lines starting with # are skipped.
+   * A missing routes file adds no route */
+  public MagentoStandInServer withRoutes(Path routesFile) throws IOException {
+    if (!Files.exists(routesFile)) {
+      log.warn("No stand-in routes file {}!!!", routesFile);
+      return this;
+    }
+    for (String line : Files.readAllLines(routesFile, StandardCharsets.UTF_8)) {
+      line = line.trim();
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      String[] parts = line.split("\\s+");
+      LatencyProfile latency = LatencyProfile.NONE;
+      double errorRate = 0;
+      int errorStatus = 503;
+      for (int i = 3; i < parts.length; i++) {
+        String option = parts[i];
+        if (option.startsWith("latency=")) {
+          latency = LatencyProfile.parse(option.substring("latency=".length()));
+        } else if (option.startsWith("errorRate=")) {
+          errorRate = Double.parseDouble(option.substring("errorRate=".length()));
+        } else if (option.startsWith("errorStatus=")) {
+          errorStatus = Integer.parseInt(option.substring("errorStatus=".length()));
+        } else {
+          throw new IllegalArgumentException("Unknown route option " + option + " in " + routesFile);
+        }
+      }
+      route(parts[0], parts[1], parts[2], latency, errorRate, errorStatus);
+    }
+    return this;
+  }
+
+  /*Add one route, the first route matching method and path answers a request
+   * @param http method, path regex, recorded payload below resourceDir, latency, share of requests
+   * answered with errorStatus instead of the payload, status of those errors */
+  public MagentoStandInServer route(String method, String pathRegex, String resource,
+                                   LatencyProfile latency, double errorRate, int errorStatus) throws IOException {
+    byte[] body = Files.readAllBytes(resourceDir.resolve(resource));
+    routes.add(new Route(method.toUpperCase(), Pattern.compile(pathRegex), body, latency, errorRate, errorStatus,
+      new Random(seed + routes.size())));
+    return this;
+  }
+
+  private void routeIfRecorded(String method, String pathRegex, String resource,
+                               LatencyProfile latency, double errorRate) throws IOException {
+    if (!Files.exists(resourceDir.resolve(resource))) {
+      log.warn("No recorded payload {} for {} {}, route skipped!!!", resource, method, pathRegex);
+      return;
+    }
+    route(method, pathRegex, resource, latency, errorRate, 503);
+  }
+
+  public void start() {
+    server.start();
+  }
+
+  public void stop() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  public String getBaseUrl() {
+    return "http://localhost:" + server.getAddress().getPort();
+  }
+
+  /*@return number of requests no route matched, answered with 404 */
+  public long getUnmatchedCount() {
+    return unmatchedCount.get();
+  }
+
+  public List<Route> getRoutes() {
+    return routes;
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try {
+      String path = exchange.getRequestURI().getPath();
+      for (Route route : routes) {
+        if (route.matches(exchange.getRequestMethod(), path)) {
+          route.answer(exchange);
+          return;
+        }
+      }
+      if (upstreamBaseUrl != null) {
+        forwardAndRecord(exchange, path);
+        return;
+      }
+      unmatchedCount.incrementAndGet();
+      log.warn("No stand-in route for {} {}!!!", exchange.getRequestMethod(), path);
+      send(exchange, 404, "{\"message\":\"No stand-in route\"}".getBytes(StandardCharsets.UTF_8));
+    } finally {
+      exchange.close();
+    }
+  }
+
+  /*Answer with the response of the upstream Magento, and record it as a route if it is a 200 to a
+   * recordable call */
+  private void forwardAndRecord(HttpExchange exchange, String path) throws IOException {
+    String method = exchange.getRequestMethod().toUpperCase();
+    String query = exchange.getRequestURI().getRawQuery();
+    HttpURLConnection connection = (HttpURLConnection) new URL(
+      upstreamBaseUrl + exchange.getRequestURI().getRawPath() + (query == null ? "" : "?" + query)).openConnection();
+    connection.setRequestMethod(method);
+    for (String header : Arrays.asList("Authorization", "Content-Type", "Accept")) {
+      String value = exchange.getRequestHeaders().getFirst(header);
+      if (value != null) {
+        connection.setRequestProperty(header, value);
+      }
+    }
+    byte[] requestBody = readAll(exchange.getRequestBody());
+    if (requestBody.length > 0) {
+      connection.setDoOutput(true);
+      try (OutputStream out = connection.getOutputStream()) {
+        out.write(requestBody);
+      }
+    }
+    int status = connection.getResponseCode();
+    InputStream responseStream = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+    byte[] body = responseStream == null ? new byte[0] : readAll(responseStream);
+    connection.disconnect();
+    if (status == 200 && isRecordable(path)) {
+      record(method, path, body);
+    }
+    send(exchange, status, body);
+  }
+
+  private static boolean isRecordable(String path) {
+    for (Pattern recordable : RECORDABLE_PATHS) {
+      if (recordable.matcher(path).matches()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /*Save a recorded payload with its token fields masked and add it as an exact path route, once per
+   * method and path. A payload that is not JSON is not recorded */
+  private synchronized void record(String method, String path, byte[] body) throws IOException {
+    for (Route route : routes) {
+      if (route.matches(method, path)) {
+        return;
+      }
+    }
+    byte[] scrubbed;
+    try {
+      scrubbed = scrub(body);
+    } catch (IOException e) {
+      log.warn("Not recording {} {}, its response is not JSON: {}", method, path, e.getMessage());
+      return;
+    }
+    String resource = "magento/recorded/" + method.toLowerCase() + path.replaceAll("[^A-Za-z0-9]+", "-") + ".json";
+    Path payload = resourceDir.resolve(resource);
+    Files.createDirectories(payload.getParent());
+    Files.write(payload, scrubbed);
+    String pathRegex = "^" + Pattern.quote(path) + "$";
+    route(method, pathRegex, resource, LatencyProfile.NONE, 0, 503);
+    Files.write(getRecordedRoutesFile(),
+      (method + " " + pathRegex + " " + resource + System.lineSeparator()).getBytes(StandardCharsets.UTF_8),
+      StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    log.info("Recorded {} {} to {}", method, path, resource);
+  }
+
+  private static byte[] scrub(byte[] body) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(body.length);
+    SCRUBBER.copy(new ByteArrayInputStream(body), out, ApiSteps.FAKE_TOKEN);
+    return out.toByteArray();
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    try (InputStream input = in) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = input.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+      return out.toByteArray();
+    }
+  }
+
+  private static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+    exchange.getResponseHeaders().set("Content-Type", "application/json");
+    exchange.sendResponseHeaders(status, body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+
+  /*One recorded payload with its latency and error rate */
+  public static class Route {
+    private static final byte[] ERROR_BODY = "{\"message\":\"Stand-in error\"}".getBytes(StandardCharsets.UTF_8);
+
+    private final String method;
+    private final Pattern path;
+    private final byte[] body;
+    private final LatencyProfile latency;
+    private final double errorRate;
+    private final int errorStatus;
+    private final Random random;
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong errorCount = new AtomicLong();
+
+    Route(String method, Pattern path, byte[] body, LatencyProfile latency,
+          double errorRate, int errorStatus, Random random) {
+      this.method = method;
+      this.path = path;
+      this.body = body;
+      this.latency = latency;
+      this.errorRate = errorRate;
+      this.errorStatus = errorStatus;
+      this.random = random;
+    }
+
+    boolean matches(String requestMethod, String requestPath) {
+      return method.equalsIgnoreCase(requestMethod) && path.matcher(requestPath).matches();
+    }
+
+    void answer(HttpExchange exchange) throws IOException {
+      requestCount.incrementAndGet();
+      long latencyMicros;
+      boolean error;
+      synchronized (random) {
+        latencyMicros = latency.sampleMicros(random);
+        error = random.nextDouble() < errorRate;
+      }
+      LatencyProfile.pause(latencyMicros);
+      if (error) {
+        errorCount.incrementAndGet();
+        send(exchange, errorStatus, ERROR_BODY);
+      } else {
+        send(exchange, 200, body);
+      }
+    }
+
+    public String getPath() {
+      return path.pattern();
+    }
+
+    public long getRequestCount() {
+      return requestCount.get();
+    }
+
+    public long getErrorCount() {
+      return errorCount.get();
+    }
+  }
+}
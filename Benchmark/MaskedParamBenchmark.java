@@ -0,0 +1,133 @@
+package vn.edu.topica.eco.api.middleware.benchmark;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.aspectj.lang.reflect.MethodSignature;
+import org.openjdk.jmh.annotations.*;
+import org.slf4j.Logger;
+import org.slf4j.helpers.NOPLogger;
+import org.springframework.aop.aspectj.annotation.AspectJProxyFactory;
+import org.springframework.aop.support.AopUtils;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+import org.springframework.expression.spel.support.StandardEvaluationContext;
+import vn.edu.topica.eco.api.middleware.aop.Logging.MaskedParam;
+import vn.edu.topica.eco.api.middleware.aop.MaskedParamEvaluator;
+import vn.edu.topica.eco.api.middleware.aop.MaskedParamLogger;
+import vn.edu.topica.eco.api.middleware.cache.PriceCacheStore;
+import vn.edu.topica.eco.api.middleware.model.magento.course.MagentoCourse;
+import vn.edu.topica.eco.api.middleware.service.v1.PriceService;
+import vn.edu.topica.eco.api.middleware.service.v1.impl.PriceServiceImpl;
+import vn.edu.topica.eco.api.middleware.standin.LatencyProfile;
+import vn.edu.topica.eco.api.middleware.standin.StandIns;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/*Overhead of logging a @MaskedParam method per call, through a Spring AOP proxy of PriceService.
+ * DIRECT: no proxy, the baseline. PER_CALL_SPEL: what the Logging aspect does today as far as we know,
+ * reading the annotations, parsing and interpreting maskedSpel and logging on every call.
+ * CACHED: MaskedParamLogger with compiled expressions and the async writer. CACHED_INFO_OFF: the same
+ * with INFO disabled, nothing is evaluated. Run with the gc profiler to compare allocations per call.
+ * The logger of the enabled modes is a stub-only mock, so appender cost is left out */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MaskedParamBenchmark {
+
+  public enum Mode { DIRECT, PER_CALL_SPEL, CACHED, CACHED_INFO_OFF }
+
+  @Param({"DIRECT", "PER_CALL_SPEL", "CACHED", "CACHED_INFO_OFF"})
+  Mode mode;
+
+  @Param({"20"})
+  int pageSize;
+
+  private PriceService priceService;
+  private MaskedParamLogger maskedParamLogger;
+  private List<MagentoCourse> courses;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    PriceServiceImpl target = new PriceServiceImpl(
+      StandIns.priceRepository(LatencyProfile.NONE), new PriceCacheStore(StandIns.cacheManager()),
+      StandIns.cacheMetrics(), StandIns.magentoGuards(), true, 100, 200);
+    courses = StandIns.courses(pageSize);
+    maskedParamLogger = new MaskedParamLogger(new MaskedParamEvaluator(), 8192);
+    if (mode == Mode.DIRECT) {
+      priceService = target;
+      return;
+    }
+    Logger logger = NOPLogger.NOP_LOGGER;
+    if (mode != Mode.CACHED_INFO_OFF) {
+      logger = mock(Logger.class, withSettings().stubOnly());
+      when(logger.isInfoEnabled()).thenReturn(true);
+    }
+    AspectJProxyFactory proxyFactory = new AspectJProxyFactory(target);
+    proxyFactory.addInterface(PriceService.class);
+    proxyFactory.addAspect(new LoggingAspect(mode, logger, maskedParamLogger));
+    priceService = proxyFactory.getProxy();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    maskedParamLogger.shutdown();
+  }
+
+  @Benchmark
+  public void cacheCoursePrice() throws Exception {
+    priceService.cacheCoursePrice(courses);
+  }
+
+  /*Stand-in for the Logging aspect, logging every PriceService call in the given mode */
+  @Aspect
+  public static class LoggingAspect {
+
+    private final Mode mode;
+    private final Logger logger;
+    private final MaskedParamLogger maskedParamLogger;
+
+    LoggingAspect(Mode mode, Logger logger, MaskedParamLogger maskedParamLogger) {
+      this.mode = mode;
+      this.logger = logger;
+      this.maskedParamLogger = maskedParamLogger;
+    }
+
+    @Around("execution(* vn.edu.topica.eco.api.middleware.service.v1.PriceService.*(..))")
+    public Object log(ProceedingJoinPoint joinPoint) throws Throwable {
+      Method method = AopUtils.getMostSpecificMethod(
+        ((MethodSignature) joinPoint.getSignature()).getMethod(), joinPoint.getTarget().getClass());
+      if (mode == Mode.PER_CALL_SPEL) {
+        logPerCall(method, joinPoint.getArgs());
+      } else {
+        maskedParamLogger.logInvocation(logger, method, joinPoint.getArgs());
+      }
+      return joinPoint.proceed();
+    }
+
+    private void logPerCall(Method method, Object[] args) {
+      Object[] logged = new Object[args.length];
+      Annotation[][] parameterAnnotations = method.getParameterAnnotations();
+      for (int i = 0; i < args.length; i++) {
+        logged[i] = args[i];
+        for (Annotation annotation : parameterAnnotations[i]) {
+          if (annotation instanceof MaskedParam) {
+            logged[i] = new SpelExpressionParser().parseExpression(((MaskedParam) annotation).maskedSpel())
+              .getValue(new StandardEvaluationContext(args[i]));
+          }
+        }
+      }
+      logger.info("Call {} with params {}", method.getName(), Arrays.toString(logged));
+    }
+  }
+}
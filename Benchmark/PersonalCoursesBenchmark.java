@@ -0,0 +1,132 @@
+package vn.edu.topica.eco.api.middleware.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import vn.edu.topica.eco.api.middleware.cache.CustomerTokenCache;
+import vn.edu.topica.eco.api.middleware.cache.PersonalCourseCacheUpdater;
+import vn.edu.topica.eco.api.middleware.constant.CacheConst;
+import vn.edu.topica.eco.api.middleware.model.magento.course.PersonalCourses;
+import vn.edu.topica.eco.api.middleware.model.mobile.v1.course.PersonalCourseItems;
+import vn.edu.topica.eco.api.middleware.service.v1.CategoryService;
+import vn.edu.topica.eco.api.middleware.service.v1.CustomerService;
+import vn.edu.topica.eco.api.middleware.service.v1.impl.CourseServiceImpl;
+import vn.edu.topica.eco.api.middleware.standin.LatencyProfile;
+import vn.edu.topica.eco.api.middleware.standin.StandIns;
+import vn.edu.topica.eco.api.middleware.util.SkuRegistry;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+import static vn.edu.topica.eco.api.middleware.constant.CacheConst.CacheName.*;
+
+/*CourseServiceImpl.getPersonalCourses for one authenticated customer.
+ * cacheState HIT: the three personal caches are fresh, MISS: they are empty,
+ * EXPIRED: they are older than PERSONAL_CACHE_TTL. MISS and EXPIRED are restored before every call */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PersonalCoursesBenchmark {
+
+  public enum CacheState { HIT, MISS, EXPIRED }
+
+  private static final String TOKEN = "benchmark-token";
+  private static final int CUSTOMER_ID = 42;
+
+  @Param({"HIT", "MISS", "EXPIRED"})
+  CacheState cacheState;
+
+  @Param({"true", "false"})
+  boolean parallelLoad;
+
+  @Param({"0", "5ms", "2ms-20ms"})
+  String magentoLatency;
+
+  @Param({"20"})
+  int itemsPerList;
+
+  private CacheManager cacheManager;
+  private CourseServiceImpl courseService;
+  private List<String> cartSkus;
+  private List<String> wishlistSkus;
+  private List<String> ownedSkus;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    LatencyProfile latency = LatencyProfile.parse(magentoLatency);
+    cartSkus = StandIns.skus(0, itemsPerList);
+    wishlistSkus = StandIns.skus(itemsPerList, itemsPerList);
+    ownedSkus = StandIns.skus(2 * itemsPerList, itemsPerList);
+
+    CustomerService customerService = mock(CustomerService.class, withSettings().stubOnly());
+    when(customerService.getCustomerIdFromToken(anyString())).thenReturn(CUSTOMER_ID);
+
+    cacheManager = StandIns.cacheManager();
+    courseService = new CourseServiceImpl(
+      StandIns.courseRepository(latency, ownedSkus),
+      StandIns.cartRepository(latency, cartSkus),
+      StandIns.wishlistRepository(latency, wishlistSkus),
+      mock(CategoryService.class, withSettings().stubOnly()),
+      customerService,
+      new CustomerTokenCache(customerService, 100000, 30),
+      cacheManager,
+      StandIns.cacheMetrics(),
+      new PersonalCourseCacheUpdater(cacheManager),
+      new SkuRegistry(),
+      StandIns.magentoGuards(),
+      StandIns.courseFragmentCache(),
+      StandIns.cachedPriceReader(cacheManager),
+      parallelLoad, 3000, 16, 0);
+  }
+
+  @Setup(Level.Iteration)
+  public void fillCache() {
+    if (cacheState == CacheState.HIT) {
+      putPersonalItems(System.currentTimeMillis());
+    }
+  }
+
+  @Setup(Level.Invocation)
+  public void resetCache() {
+    switch (cacheState) {
+      case MISS:
+        cacheManager.getCache(COURSES_IN_CART.name()).clear();
+        cacheManager.getCache(COURSES_IN_WISHLIST.name()).clear();
+        cacheManager.getCache(COURSES_OWNED.name()).clear();
+        break;
+      case EXPIRED:
+        putPersonalItems(System.currentTimeMillis() - CacheConst.PERSONAL_CACHE_TTL.toMillis() - 1);
+        break;
+      case HIT:
+        break;
+    }
+  }
+
+  private void putPersonalItems(long cachedTime) {
+    put(COURSES_IN_CART, cartSkus, cachedTime);
+    put(COURSES_IN_WISHLIST, wishlistSkus, cachedTime);
+    put(COURSES_OWNED, ownedSkus, cachedTime);
+  }
+
+  private void put(CacheConst.CacheName cacheName, List<String> skus, long cachedTime) {
+    Cache cache = cacheManager.getCache(cacheName.name());
+    cache.put(CUSTOMER_ID, new PersonalCourseItems(skus, cachedTime));
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    courseService.shutdown();
+  }
+
+  @Benchmark
+  public PersonalCourses getPersonalCourses() throws Exception {
+    return courseService.getPersonalCourses(TOKEN, null);
+  }
+}
@@ -0,0 +1,23 @@
+package vn.edu.topica.eco.api.middleware.benchmark;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+
+/*PriceServiceImpl with a fixed cache state, no per call fixture.
+ * cacheState HIT: every price is cached and fresh, MISS: PRICE_CACHE_BLOCK is empty.
+ * Expired prices are measured by ExpiredPriceServiceBenchmark */
+public class PriceServiceBenchmark extends AbstractPriceServiceBenchmark {
+
+  public enum CacheState { HIT, MISS }
+
+  @Param({"HIT", "MISS"})
+  CacheState cacheState;
+
+  @Setup(Level.Iteration)
+  public void fillCache() {
+    if (cacheState == CacheState.HIT) {
+      priceCacheStore.putAll(prices);
+    }
+  }
+}
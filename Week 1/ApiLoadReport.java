@@ -0,0 +1,95 @@
+package vn.edu.topica.eco.api.middleware.controller;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.distribution.HistogramSnapshot;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*Latency of every request of a load run, per endpoint ("GET /path"), and failed scenarios per name.
+ * Percentiles are kept for the whole run, not a sliding window */
+public class ApiLoadReport {
+
+  private static final double[] PERCENTILES = {0.5, 0.95, 0.99};
+
+  private final MeterRegistry registry = new SimpleMeterRegistry();
+  private final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, AtomicLong> failedScenarios = new ConcurrentHashMap<>();
+  private volatile long startedAt;
+  private volatile long finishedAt;
+
+  void start() {
+    startedAt = System.nanoTime();
+  }
+
+  void finish() {
+    finishedAt = System.nanoTime();
+  }
+
+  /*Record one request
+   * @param endpoint, time it took in nanos */
+  void record(String endpoint, long nanos) {
+    timers.computeIfAbsent(endpoint, key -> Timer.builder("api.load.requests")
+      .tag("endpoint", key)
+      .publishPercentiles(PERCENTILES)
+      .distributionStatisticExpiry(Duration.ofDays(1))
+      .distributionStatisticBufferLength(1)
+      .register(registry))
+      .record(nanos, TimeUnit.NANOSECONDS);
+  }
+
+  void recordFailure(String scenario) {
+    failedScenarios.computeIfAbsent(scenario, key -> new AtomicLong()).incrementAndGet();
+  }
+
+  /*@return requests per second of an endpoint over the run, 0 if it was not called */
+  public double getThroughput(String endpoint) {
+    Timer timer = timers.get(endpoint);
+    double seconds = (finishedAt - startedAt) / 1e9;
+    return timer == null || seconds <= 0 ? 0 : timer.count() / seconds;
+  }
+
+  /*@return latency in millis of an endpoint at percentile 0.5, 0.95 or 0.99, NaN if unknown */
+  public double getLatencyMillis(String endpoint, double percentile) {
+    Timer timer = timers.get(endpoint);
+    if (timer == null) {
+      return Double.NaN;
+    }
+    for (ValueAtPercentile value : timer.takeSnapshot().percentileValues()) {
+      if (value.percentile() == percentile) {
+        return value.value(TimeUnit.MILLISECONDS);
+      }
+    }
+    return Double.NaN;
+  }
+
+  public long getFailedCount(String scenario) {
+    AtomicLong failed = failedScenarios.get(scenario);
+    return failed == null ? 0 : failed.get();
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder text = new StringBuilder(String.format("%-60s %8s %10s %9s %9s %9s%n",
+      "endpoint", "count", "req/s", "p50 ms", "p95 ms", "p99 ms"));
+    for (Map.Entry<String, Timer> entry : new TreeMap<>(timers).entrySet()) {
+      HistogramSnapshot snapshot = entry.getValue().takeSnapshot();
+      ValueAtPercentile[] values = snapshot.percentileValues();
+      text.append(String.format("%-60s %8d %10.1f %9.2f %9.2f %9.2f%n", entry.getKey(), snapshot.count(),
+        getThroughput(entry.getKey()), values[0].value(TimeUnit.MILLISECONDS),
+        values[1].value(TimeUnit.MILLISECONDS), values[2].value(TimeUnit.MILLISECONDS)));
+    }
+    for (Map.Entry<String, AtomicLong> entry : new TreeMap<>(failedScenarios).entrySet()) {
+      text.append(String.format("failed scenario %s: %d%n", entry.getKey(), entry.getValue().get()));
+    }
+    return text.toString();
+  }
+}
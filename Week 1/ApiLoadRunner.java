@@ -0,0 +1,80 @@
+package vn.edu.topica.eco.api.middleware.controller;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/*Load mode of the API steps: replay step scenarios from many threads for a fixed time, against
+ * localhost:8081 or the mock server, whichever the steps of a scenario call. Every thread walks the
+ * scenarios round robin, each replay gets fresh request state through ApiSteps.startScenario().
+ *
+ *   Map<String, ApiLoadRunner.Scenario> scenarios = new LinkedHashMap<>();
+ *   scenarios.put("top of category", () -> {
+ *     ApiSteps.createRequestUrl(host, "GET", "/v1/courses/top-of-cat?category=1");
+ *     ApiSteps.excuteRequest(null);
+ *   });
+ *   log.info("\n{}", new ApiLoadRunner(32, 60).run(scenarios)); */
+@Slf4j
+public class ApiLoadRunner {
+
+  /*Steps of one scenario, run on the calling thread */
+  public interface Scenario {
+    void run() throws Exception;
+  }
+
+  private final int threads;
+  private final long durationSeconds;
+
+  public ApiLoadRunner(int threads, long durationSeconds) {
+    this.threads = threads;
+    this.durationSeconds = durationSeconds;
+  }
+
+  /*Replay scenarios concurrently until durationSeconds passed
+   * @param scenarios by name
+   * @return throughput and latency percentiles per endpoint, failures per scenario */
+  public ApiLoadReport run(Map<String, Scenario> scenarios) throws InterruptedException {
+    List<Map.Entry<String, Scenario>> entries = new ArrayList<>(new LinkedHashMap<>(scenarios).entrySet());
+    ApiLoadReport report = new ApiLoadReport();
+    if (entries.isEmpty()) {
+      return report;
+    }
+    ExecutorService pool = Executors.newFixedThreadPool(threads,
+      new ThreadFactoryBuilder().setNameFormat("api-load-%d").setDaemon(true).build());
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(durationSeconds);
+    report.start();
+    for (int i = 0; i < threads; i++) {
+      int first = i;
+      pool.execute(() -> replay(entries, first, deadline, report));
+    }
+    pool.shutdown();
+    if (!pool.awaitTermination(durationSeconds + 60, TimeUnit.SECONDS)) {
+      pool.shutdownNow();
+    }
+    report.finish();
+    return report;
+  }
+
+  private static void replay(List<Map.Entry<String, Scenario>> entries, int first, long deadline,
+                             ApiLoadReport report) {
+    int next = first;
+    while (System.nanoTime() < deadline && !Thread.currentThread().isInterrupted()) {
+      Map.Entry<String, Scenario> entry = entries.get(next++ % entries.size());
+      ApiSteps.startScenario(report);
+      try {
+        entry.getValue().run();
+      } catch (Exception | AssertionError e) {
+        report.recordFailure(entry.getKey());
+        log.debug("Scenario {} failed!!! {}", entry.getKey(), e.getMessage());
+      }
+    }
+    ApiSteps.endScenario();
+  }
+}
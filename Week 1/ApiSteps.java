@@ -5,11 +5,14 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectWriter;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableSet;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.skyscreamer.jsonassert.JSONAssert;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.*;
-import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
 import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.web.servlet.MockMvc;
@@ -20,21 +23,48 @@ import org.springframework.web.util.UriComponentsBuilder;
 import vn.edu.topica.eco.api.base.util.JsonUtils;
 import vn.edu.topica.eco.api.middleware.util.FileUtils;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.Collections;
-import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import static org.springframework.restdocs.mockmvc.RestDocumentationRequestBuilders.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
 
+/*Request state (url builder, method, headers, response, mock request and result) of a Cucumber run
+ * lives in the static fields below, which step classes read and assign as before. Load mode threads get
+ * their own ScenarioState from startScenario(report) instead, so replays do not share requests.
+ * The accessors of the same name (httpHeaders(), response(), ...) read whichever state the current
+ * thread uses. createRequestUrl() and createMockRequestBuilder() drop the response of the previous
+ * request; headers are kept until startScenario(), which step classes call from their own hook */
 @ActiveProfiles({"test", "test-local"})
 public class ApiSteps {
 	
-  private static final String ACCESS_TOKEN = "access_token";
+  public static final String ACCESS_TOKEN = "access_token";
   private static final String EXTRA = "extra";
   private static final String DATA = "data";
-  private static final String FAKE_TOKEN = "sometoken";
+  public static final String FAKE_TOKEN = "sometoken";
   private static final String SRC_PATH = "src/test/resources/";
+  private static final int MAX_CONNECTIONS = 200;
+
+  /*Paths scrubbed by hideToken(), ignored by the streaming compare and masked by the streaming save */
+  static final StreamingJson STREAMING_JSON = new StreamingJson(FileUtils.mapper.getFactory(),
+    ImmutableSet.of("/" + ACCESS_TOKEN, "/" + EXTRA + "/" + ACCESS_TOKEN, "/" + DATA + "/" + ACCESS_TOKEN));
+
+  /*One pooled client for every scenario and thread, RestTemplate is thread safe once configured */
+  private static final RestTemplate REST_TEMPLATE = createRestTemplate();
+
+  /*Request state of a load mode replay on the current thread, null in a Cucumber run */
+  private static final ThreadLocal<ScenarioState> SCENARIO = new ThreadLocal<>();
+  /*State of Cucumber runs, a view over the static fields */
+  private static final ScenarioState STATIC_SCENARIO = new ScenarioState(true);
 
   @Value("${mockServer}")
   boolean usingMockServer;
@@ -63,42 +93,140 @@ public class ApiSteps {
     this.jsonUtils = jsonUtils;
   }
 
+  private static RestTemplate createRestTemplate() {
+    PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(60, TimeUnit.SECONDS);
+    connectionManager.setMaxTotal(MAX_CONNECTIONS);
+    connectionManager.setDefaultMaxPerRoute(MAX_CONNECTIONS);
+    RestTemplate restTemplate = new RestTemplate(new HttpComponentsClientHttpRequestFactory(
+      HttpClients.custom().setConnectionManager(connectionManager).build()));
+
+    MappingJackson2HttpMessageConverter converter = new MappingJackson2HttpMessageConverter();
+    converter.setSupportedMediaTypes(Collections.singletonList(MediaType.ALL));
+    restTemplate.setMessageConverters(Collections.singletonList(converter));
+    return restTemplate;
+  }
+
+  /*Start a new scenario on the current thread, dropping the request state, headers included, of the
+   * previous one. Step classes call it from their before-scenario hook, the load runner before every
+   * replay
+   * @param report receiving the latency of every request of the scenario, null outside load mode:
+   * the scenario then uses the static fields */
+  public static void startScenario(ApiLoadReport report) {
+    if (report == null) {
+      SCENARIO.remove();
+      ScenarioState state = scenario();
+      state.startRequest();
+      state.httpHeaders = new HttpHeaders();
+      state.push();
+      return;
+    }
+    ScenarioState state = new ScenarioState(false);
+    state.report = report;
+    SCENARIO.set(state);
+  }
+
+  /*End the load mode replay of the current thread, it goes back to the static fields untouched */
+  public static void endScenario() {
+    SCENARIO.remove();
+  }
+
+  /*@return request state of the scenario running on the current thread, the static fields read into
+   * STATIC_SCENARIO outside load mode: call push() after changing it */
+  static ScenarioState scenario() {
+    ScenarioState state = SCENARIO.get();
+    return state != null ? state : STATIC_SCENARIO.pull();
+  }
+
+  /*@return headers of the next request of the current scenario, changes apply to it */
+  public static HttpHeaders httpHeaders() {
+    return scenario().httpHeaders;
+  }
+
+  /*Replace the headers of the current scenario */
+  public static void setHttpHeaders(HttpHeaders headers) {
+    ScenarioState state = scenario();
+    state.httpHeaders = headers == null ? new HttpHeaders() : headers;
+    state.push();
+  }
+
+  /*@return response of the last excuteRequest() of the current scenario, null before it */
+  public static ResponseEntity response() {
+    return scenario().response;
+  }
+
+  /*@return result of the last mock request of the current scenario, null before it */
+  public static ResultActions resultActions() {
+    return scenario().resultActions;
+  }
+
+  public static UriComponentsBuilder builder() {
+    return scenario().builder;
+  }
+
+  public static HttpMethod requestMethod() {
+    return scenario().requestMethod;
+  }
+
+  public static MockHttpServletRequestBuilder requestBuilder() {
+    return scenario().requestBuilder;
+  }
+
   public static void createRequestUrl(String host, String method, String path) {
+    ScenarioState state = scenario();
+    state.startRequest();
     String requestUrl = host + path;
-    builder = UriComponentsBuilder.fromUriString(requestUrl);
-    requestMethod = HttpMethod.valueOf(method.toUpperCase());
+    state.builder = UriComponentsBuilder.fromUriString(requestUrl);
+    state.requestMethod = HttpMethod.valueOf(method.toUpperCase());
+    state.endpoint = state.requestMethod + " " + state.builder.build().getPath();
+    state.push();
   }
 
   void createMockRequestBuilder(String method, String path) {
-    requestBuilder = request(HttpMethod.valueOf(method.toUpperCase()), path);
+    ScenarioState state = scenario();
+    state.startRequest();
+    state.requestBuilder = request(HttpMethod.valueOf(method.toUpperCase()), path);
+    state.endpoint = method.toUpperCase() + " " + UriComponentsBuilder.fromUriString(path).build().getPath();
+    state.push();
   }
 
-  static void excuteRequest(JsonNode body) {
-    RestTemplate restTemplate = new RestTemplate();
-    HttpEntity entity;
-    httpHeaders.setContentType(MediaType.APPLICATION_JSON);
-
-    MappingJackson2HttpMessageConverter converter = new MappingJackson2HttpMessageConverter();
-    converter.setSupportedMediaTypes(Collections.singletonList(MediaType.ALL));
-    List<HttpMessageConverter<?>> messageConverters = Collections.singletonList(converter);
-    restTemplate.setMessageConverters(messageConverters);
+  /*Perform the request built by createMockRequestBuilder() on the mock server */
+  void performMockRequest() throws Exception {
+    ScenarioState state = scenario();
+    long start = System.nanoTime();
+    try {
+      state.resultActions = mockMvc.perform(state.requestBuilder);
+    } finally {
+      state.record(System.nanoTime() - start);
+      state.push();
+    }
+  }
 
-    entity = new HttpEntity<>(body, httpHeaders);
-    response = restTemplate.exchange(builder.build().toUri(), requestMethod, entity, JsonNode.class);
+  static void excuteRequest(JsonNode body) {
+    ScenarioState state = scenario();
+    state.httpHeaders.setContentType(MediaType.APPLICATION_JSON);
+    HttpEntity entity = new HttpEntity<>(body, state.httpHeaders);
+    long start = System.nanoTime();
+    try {
+      state.response = REST_TEMPLATE.exchange(state.builder.build().toUri(), state.requestMethod, entity, JsonNode.class);
+    } finally {
+      state.record(System.nanoTime() - start);
+      state.push();
+    }
   }
 
   void verifyResponse(String expectedResource, boolean strict) throws Exception {
     if (!Strings.isNullOrEmpty(expectedResource)) {
       String jsonExpected = FileUtils.readForString(expectedResource);
       if (usingMockServer) {
-        resultActions.andExpect(content().json(jsonExpected, strict));
+        scenario().resultActions.andExpect(content().json(jsonExpected, strict));
       } else {
-        JSONAssert.assertEquals(jsonExpected, response.getBody().toString(), true);
+        JSONAssert.assertEquals(jsonExpected, scenario().response.getBody().toString(), true);
       }
     }
   }
 
   public static void excuteRequestAndSaveToFile(String token, JsonNode body, String filePath) throws Exception {
+    HttpHeaders httpHeaders = scenario().httpHeaders;
     if (Strings.isNullOrEmpty(httpHeaders.getFirst(HttpHeaders.AUTHORIZATION))) {
       httpHeaders.setBearerAuth(token);
     }
@@ -108,6 +236,7 @@ public class ApiSteps {
 
   static void saveToFile(String path) throws Exception {
     String filePath = SRC_PATH + path;
+    ResponseEntity response = scenario().response;
     ObjectWriter writer = FileUtils.mapper.writer(new DefaultPrettyPrinter());
     try {
       ObjectNode objectNode = FileUtils.mapper.valueToTree(response.getBody());
@@ -118,7 +247,73 @@ public class ApiSteps {
     }
   }
 
-  private static void hideToken(ObjectNode objectNode) {
+  /*Streaming mode of excuteRequest() plus verifyResponse() for large payloads: the response body is
+   * compared with expectedResource token by token while it is read, without building a tree or a
+   * String of either. access_token paths are ignored */
+  static void excuteRequestAndVerifyStreaming(JsonNode body, String expectedResource, boolean strict) {
+    excuteRequestStreaming(body, in -> {
+      try (InputStream expected = openResource(expectedResource)) {
+        STREAMING_JSON.assertEquals(expected, in, strict);
+      }
+    });
+  }
+
+  /*Streaming mode of verifyResponse() for the mock server, after performMockRequest() */
+  void verifyMockResponseStreaming(String expectedResource, boolean strict) throws Exception {
+    byte[] content = scenario().resultActions.andReturn().getResponse().getContentAsByteArray();
+    try (InputStream expected = openResource(expectedResource)) {
+      STREAMING_JSON.assertEquals(expected, new ByteArrayInputStream(content), strict);
+    }
+  }
+
+  /*Streaming mode of excuteRequestAndSaveToFile(): the response body is written to the file as it is
+   * read, with the access_token paths masked like hideToken() does */
+  public static void excuteRequestAndSaveToFileStreaming(String token, JsonNode body, String filePath) {
+    HttpHeaders httpHeaders = scenario().httpHeaders;
+    if (Strings.isNullOrEmpty(httpHeaders.getFirst(HttpHeaders.AUTHORIZATION))) {
+      httpHeaders.setBearerAuth(token);
+    }
+    excuteRequestStreaming(body, in -> {
+      try (OutputStream out = Files.newOutputStream(Paths.get(SRC_PATH + filePath))) {
+        STREAMING_JSON.copy(in, out, FAKE_TOKEN);
+      }
+    });
+  }
+
+  private interface BodyConsumer {
+    void accept(InputStream body) throws Exception;
+  }
+
+  private static void excuteRequestStreaming(JsonNode body, BodyConsumer consumer) {
+    ScenarioState state = scenario();
+    state.httpHeaders.setContentType(MediaType.APPLICATION_JSON);
+    HttpEntity entity = new HttpEntity<>(body, state.httpHeaders);
+    long start = System.nanoTime();
+    try {
+      REST_TEMPLATE.execute(state.builder.build().toUri(), state.requestMethod,
+        REST_TEMPLATE.httpEntityCallback(entity), response -> {
+          try {
+            consumer.accept(response.getBody());
+          } catch (RuntimeException | Error | IOException e) {
+            throw e;
+          } catch (Exception e) {
+            throw new IllegalStateException(e);
+          }
+          return null;
+        });
+    } finally {
+      state.record(System.nanoTime() - start);
+      state.push();
+    }
+  }
+
+  /*@return expected resource from the classpath, or from SRC_PATH when it is not on it */
+  private static InputStream openResource(String resource) throws FileNotFoundException {
+    InputStream in = ApiSteps.class.getClassLoader().getResourceAsStream(resource);
+    return in != null ? in : new FileInputStream(SRC_PATH + resource);
+  }
+
+  static void hideToken(ObjectNode objectNode) {
     if (objectNode.hasNonNull(ACCESS_TOKEN)) {
       objectNode.remove(ACCESS_TOKEN);
       objectNode.put(ACCESS_TOKEN, FAKE_TOKEN);
@@ -132,4 +327,64 @@ public class ApiSteps {
       data.put(ACCESS_TOKEN, FAKE_TOKEN);
     }
   }
+
+  /*Request state of one scenario: of a load mode replay, or a copy of the static fields */
+  static class ScenarioState {
+    private final boolean staticFields;
+    UriComponentsBuilder builder;
+    HttpMethod requestMethod;
+    ResponseEntity response;
+    HttpHeaders httpHeaders = new HttpHeaders();
+    MockHttpServletRequestBuilder requestBuilder;
+    ResultActions resultActions;
+    String endpoint;
+    ApiLoadReport report;
+
+    private ScenarioState(boolean staticFields) {
+      this.staticFields = staticFields;
+    }
+
+    /*Read the static fields, step classes may have assigned them since the last push() */
+    private ScenarioState pull() {
+      builder = ApiSteps.builder;
+      requestMethod = ApiSteps.requestMethod;
+      response = ApiSteps.response;
+      if (ApiSteps.httpHeaders == null) {
+        ApiSteps.httpHeaders = new HttpHeaders();
+      }
+      httpHeaders = ApiSteps.httpHeaders;
+      requestBuilder = ApiSteps.requestBuilder;
+      resultActions = ApiSteps.resultActions;
+      return this;
+    }
+
+    /*Write the state back to the static fields, if it is their copy */
+    void push() {
+      if (!staticFields) {
+        return;
+      }
+      ApiSteps.builder = builder;
+      ApiSteps.requestMethod = requestMethod;
+      ApiSteps.response = response;
+      ApiSteps.httpHeaders = httpHeaders;
+      ApiSteps.requestBuilder = requestBuilder;
+      ApiSteps.resultActions = resultActions;
+    }
+
+    /*Drop what the previous request of the scenario built or received, headers are kept */
+    private void startRequest() {
+      builder = null;
+      requestMethod = null;
+      response = null;
+      requestBuilder = null;
+      resultActions = null;
+      endpoint = null;
+    }
+
+    private void record(long nanos) {
+      if (report != null) {
+        report.record(endpoint, nanos);
+      }
+    }
+  }
 }
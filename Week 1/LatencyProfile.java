@@ -0,0 +1,94 @@
+package vn.edu.topica.eco.api.middleware.standin;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/*Latency injected into every call of an in-memory repository stand-in or of MagentoStandInServer.
+ * Either uniform: each call waits a random time in [minMicros, maxMicros], or log-normal: a long
+ * tailed distribution given by its median and its 99th percentile, closer to a real Magento */
+public class LatencyProfile {
+
+  public static final LatencyProfile NONE = new LatencyProfile(0, 0);
+
+  /*z-score of the 99th percentile of a standard normal distribution */
+  private static final double Z_99 = 2.326;
+
+  private final long minMicros;
+  private final long maxMicros;
+  private final double sigma;
+
+  public LatencyProfile(long minMicros, long maxMicros) {
+    this(minMicros, Math.max(minMicros, maxMicros), 0);
+  }
+
+  private LatencyProfile(long minMicros, long maxMicros, double sigma) {
+    this.minMicros = minMicros;
+    this.maxMicros = maxMicros;
+    this.sigma = sigma;
+  }
+
+  /*@param median and 99th percentile latency in micros
+   * @return log-normal LatencyProfile, minMicros holds the median */
+  public static LatencyProfile logNormal(long medianMicros, long p99Micros) {
+    double sigma = medianMicros > 0 && p99Micros > medianMicros
+      ? Math.log((double) p99Micros / medianMicros) / Z_99
+      : 0;
+    return new LatencyProfile(medianMicros, medianMicros, sigma);
+  }
+
+  /*@param latency like "0", "5ms", "200us", "2ms-20ms" (uniform) or "p50=5ms,p99=50ms" (log-normal)
+   * @return LatencyProfile */
+  public static LatencyProfile parse(String latency) {
+    latency = latency.trim();
+    if (latency.startsWith("p50=")) {
+      String[] percentiles = latency.split(",");
+      long median = parseMicros(percentiles[0].substring("p50=".length()));
+      long p99 = percentiles.length > 1 ? parseMicros(percentiles[1].trim().substring("p99=".length())) : median;
+      return logNormal(median, p99);
+    }
+    String[] bounds = latency.split("-");
+    long min = parseMicros(bounds[0]);
+    long max = bounds.length > 1 ? parseMicros(bounds[1]) : min;
+    return new LatencyProfile(min, max);
+  }
+
+  private static long parseMicros(String value) {
+    value = value.trim();
+    if (value.endsWith("us")) {
+      return Long.parseLong(value.substring(0, value.length() - 2));
+    }
+    if (value.endsWith("ms")) {
+      return TimeUnit.MILLISECONDS.toMicros(Long.parseLong(value.substring(0, value.length() - 2)));
+    }
+    return TimeUnit.MILLISECONDS.toMicros(Long.parseLong(value));
+  }
+
+  /*@param random source, a seeded one makes the sequence of samples reproducible
+   * @return one latency sample in micros */
+  public long sampleMicros(Random random) {
+    if (sigma > 0) {
+      return (long) (minMicros * Math.exp(sigma * random.nextGaussian()));
+    }
+    if (minMicros == maxMicros) {
+      return minMicros;
+    }
+    return minMicros + (long) (random.nextDouble() * (maxMicros - minMicros + 1));
+  }
+
+  /*Block the calling thread for one sample of this profile */
+  public void pause() {
+    if (maxMicros == 0) {
+      return;
+    }
+    pause(sampleMicros(ThreadLocalRandom.current()));
+  }
+
+  /*Block the calling thread for micros */
+  public static void pause(long micros) {
+    if (micros > 0) {
+      LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(micros));
+    }
+  }
+}
@@ -0,0 +1,108 @@
+package vn.edu.topica.eco.api.middleware.service.v1.impl;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Test;
+import org.springframework.cache.CacheManager;
+import vn.edu.topica.eco.api.middleware.cache.CustomerTokenCache;
+import vn.edu.topica.eco.api.middleware.cache.PersonalCourseCacheUpdater;
+import vn.edu.topica.eco.api.middleware.cache.PriceCacheStore;
+import vn.edu.topica.eco.api.middleware.constant.CacheConst;
+import vn.edu.topica.eco.api.middleware.model.magento.course.CoursePrice;
+import vn.edu.topica.eco.api.middleware.model.magento.course.MagentoCourse;
+import vn.edu.topica.eco.api.middleware.model.magento.course.PersonalCourses;
+import vn.edu.topica.eco.api.middleware.model.mobile.v1.course.PersonalCourseItems;
+import vn.edu.topica.eco.api.middleware.repository.CartRepository;
+import vn.edu.topica.eco.api.middleware.repository.PriceRepository;
+import vn.edu.topica.eco.api.middleware.resilience.MagentoGuards;
+import vn.edu.topica.eco.api.middleware.service.v1.CategoryService;
+import vn.edu.topica.eco.api.middleware.service.v1.CustomerService;
+import vn.edu.topica.eco.api.middleware.standin.LatencyProfile;
+import vn.edu.topica.eco.api.middleware.standin.StandIns;
+import vn.edu.topica.eco.api.middleware.util.SkuRegistry;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+import static vn.edu.topica.eco.api.middleware.constant.CacheConst.CacheName.COURSES_IN_CART;
+
+/*Fallback to expired cache entries when Magento fails, on the repository stand-ins of the benchmarks */
+public class MagentoFallbackTest {
+
+  private static final int CUSTOMER_ID = 42;
+
+  /*Cart repository fails, an expired COURSES_IN_CART entry is served instead of an error */
+  @Test
+  public void personalCoursesFallBackToExpiredCache() throws Exception {
+    List<String> cartSkus = StandIns.skus(0, 3);
+    CartRepository cartRepository = mock(CartRepository.class, withSettings().stubOnly());
+    when(cartRepository.getCustomerCartTotalInfo(anyInt())).thenThrow(new IOException("Magento down"));
+    CustomerService customerService = mock(CustomerService.class, withSettings().stubOnly());
+    when(customerService.getCustomerIdFromToken(anyString())).thenReturn(CUSTOMER_ID);
+
+    CacheManager cacheManager = StandIns.cacheManager();
+    cacheManager.getCache(COURSES_IN_CART.name()).put(CUSTOMER_ID,
+      new PersonalCourseItems(cartSkus, System.currentTimeMillis() - CacheConst.PERSONAL_CACHE_TTL.toMillis() - 1));
+    for (boolean parallelLoad : new boolean[]{false, true}) {
+      CourseServiceImpl courseService = new CourseServiceImpl(
+        StandIns.courseRepository(LatencyProfile.NONE, StandIns.skus(10, 2)),
+        cartRepository,
+        StandIns.wishlistRepository(LatencyProfile.NONE, StandIns.skus(20, 2)),
+        mock(CategoryService.class, withSettings().stubOnly()),
+        customerService,
+        new CustomerTokenCache(customerService, 1000, 30),
+        cacheManager,
+        StandIns.cacheMetrics(),
+        new PersonalCourseCacheUpdater(cacheManager),
+        new SkuRegistry(),
+        StandIns.magentoGuards(),
+        StandIns.courseFragmentCache(),
+        StandIns.cachedPriceReader(cacheManager),
+        parallelLoad, 3000, 4, 0);
+      try {
+        PersonalCourses personalCourses = courseService.getPersonalCourses("token", null);
+        assertEquals("expired cart items were not served", cartSkus, personalCourses.getCartItems());
+        assertEquals("wishlist should still load from Magento", 2, personalCourses.getWishlistItems().size());
+      } finally {
+        courseService.shutdown();
+      }
+    }
+  }
+
+  /*Price repository fails, synchronous refresh serves the expired cached prices */
+  @Test
+  public void pricesFallBackToExpiredCache() throws Exception {
+    PriceRepository priceRepository = mock(PriceRepository.class, withSettings().stubOnly());
+    when(priceRepository.getCoursePrices(anyList())).thenThrow(new IOException("Magento down"));
+    PriceCacheStore priceCacheStore = new PriceCacheStore(StandIns.cacheManager());
+    List<CoursePrice> prices = new ArrayList<>();
+    for (String sku : StandIns.skus(0, 3)) {
+      CoursePrice price = new CoursePrice();
+      price.setSku(sku);
+      price.setOriginalPrice(500.0);
+      price.setDiscountPrice(400.0);
+      prices.add(price);
+    }
+    priceCacheStore.putAll(prices, System.currentTimeMillis() - CacheConst.CACHED_COURSE_PRICE_TTL - 1);
+
+    PriceServiceImpl priceService = new PriceServiceImpl(priceRepository, priceCacheStore, StandIns.cacheMetrics(),
+      new MagentoGuards(new SimpleMeterRegistry(), 4, 0, 1, 1000), false, 100, 200);
+    try {
+      List<MagentoCourse> courses = StandIns.courses(3);
+      priceService.updateMagentoCoursePrices(courses);
+      for (MagentoCourse course : courses) {
+        assertEquals("expired final price was not served", 400.0, course.getFinalPrice(), 0);
+        assertEquals("expired price was not served", 500.0, course.getPrice(), 0);
+      }
+    } finally {
+      priceService.shutdown();
+    }
+  }
+}
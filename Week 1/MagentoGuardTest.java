@@ -0,0 +1,233 @@
+package vn.edu.topica.eco.api.middleware.resilience;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/*Deterministic checks of MagentoGuard: slow calls are held on a latch instead of a timer and the
+ * circuit breaker runs on a manual clock, so every run takes the same path */
+public class MagentoGuardTest {
+
+  private final AtomicLong clock = new AtomicLong();
+  private ExecutorService callers;
+
+  @Before
+  public void setUp() {
+    callers = Executors.newFixedThreadPool(2);
+  }
+
+  @After
+  public void tearDown() {
+    callers.shutdownNow();
+  }
+
+  /*Two slow calls hold both permits, the third is rejected without waiting for them */
+  @Test
+  public void bulkheadRejectsWhenFull() throws Exception {
+    MagentoGuard guard = new MagentoGuard("cart", 2, 0, 5, 1000, System::currentTimeMillis);
+    CountDownLatch entered = new CountDownLatch(2);
+    CountDownLatch release = new CountDownLatch(1);
+    List<Future<String>> slowCalls = new ArrayList<>();
+    for (int i = 0; i < 2; i++) {
+      slowCalls.add(callers.submit(() -> guard.call(() -> {
+        entered.countDown();
+        release.await();
+        return "ok";
+      })));
+    }
+    assertTrue("slow calls did not start", entered.await(5, TimeUnit.SECONDS));
+    assertEquals(2, guard.getActiveCalls());
+    expectUnavailable(() -> guard.call(() -> "unexpected"));
+    assertEquals(1, guard.getRejectedCount());
+
+    release.countDown();
+    for (Future<String> slowCall : slowCalls) {
+      assertEquals("ok", slowCall.get(5, TimeUnit.SECONDS));
+    }
+    assertEquals("permits were not released", 0, guard.getActiveCalls());
+    assertEquals("bulkhead rejection must not open the circuit", MagentoGuard.State.CLOSED, guard.getState());
+  }
+
+  /*Three failures open the circuit, calls are rejected until openMillis passed, then one
+   * successful probe closes it again */
+  @Test
+  public void circuitOpensAndRecovers() throws Exception {
+    AtomicInteger magentoCalls = new AtomicInteger();
+    MagentoGuard guard = new MagentoGuard("price", 4, 0, 3, 1000, clock::get);
+
+    for (int i = 0; i < 3; i++) {
+      expectFailure(() -> guard.call(() -> {
+        magentoCalls.incrementAndGet();
+        throw new IOException("Magento down");
+      }));
+    }
+    assertEquals(MagentoGuard.State.OPEN, guard.getState());
+
+    clock.set(999);
+    expectUnavailable(() -> guard.call(magentoCalls::incrementAndGet));
+    assertEquals("open circuit must not call Magento", 3, magentoCalls.get());
+    assertFalse(guard.isCallPermitted());
+
+    clock.set(1000);
+    expectFailure(() -> guard.call(() -> {
+      magentoCalls.incrementAndGet();
+      throw new IOException("still down");
+    }));
+    assertEquals("failed probe should reopen the circuit", MagentoGuard.State.OPEN, guard.getState());
+
+    clock.set(2000);
+    guard.call(magentoCalls::incrementAndGet);
+    assertEquals(MagentoGuard.State.CLOSED, guard.getState());
+    assertEquals("expected 3 failures and 2 probes", 5, magentoCalls.get());
+  }
+
+  /*An Error thrown by a probe reopens the circuit and frees the probe for the next window */
+  @Test
+  public void probeThrowingErrorReopensCircuit() throws Exception {
+    MagentoGuard guard = openGuard();
+    clock.set(1000);
+    try {
+      guard.call(() -> {
+        throw new StackOverflowError();
+      });
+      fail("expected the Error to reach the caller");
+    } catch (StackOverflowError expected) {
+      // the probe failed
+    }
+    assertEquals(MagentoGuard.State.OPEN, guard.getState());
+    assertEquals(0, guard.getActiveCalls());
+
+    clock.set(2000);
+    assertTrue("probe was not released", guard.isCallPermitted());
+    assertEquals("ok", guard.call(() -> "ok"));
+    assertEquals(MagentoGuard.State.CLOSED, guard.getState());
+  }
+
+  /*A probe interrupted while waiting for a permit counts as a failed probe */
+  @Test
+  public void interruptedProbeReopensCircuit() throws Exception {
+    MagentoGuard guard = new MagentoGuard("course", 1, 60000, 1, 1000, clock::get);
+    CountDownLatch failNow = new CountDownLatch(1);
+    CountDownLatch holding = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    // the first call fails and opens the circuit, the second passed the circuit while it was closed
+    // and takes the only permit after it, so the probe has to wait for a permit
+    Future<?> failing = callers.submit(() -> guard.call(() -> {
+      failNow.await();
+      throw new IOException("Magento down");
+    }));
+    while (guard.getActiveCalls() < 1) {
+      Thread.sleep(1);
+    }
+    AtomicReference<String> holderResult = new AtomicReference<>();
+    Thread holder = new Thread(() -> {
+      try {
+        holderResult.set(guard.call(() -> {
+          holding.countDown();
+          release.await();
+          return "ok";
+        }));
+      } catch (Exception e) {
+        holderResult.set(e.toString());
+      }
+    });
+    holder.start();
+    waitUntilWaiting(holder);
+    failNow.countDown();
+    assertTrue("second call did not get the permit", holding.await(5, TimeUnit.SECONDS));
+    assertEquals(MagentoGuard.State.OPEN, guard.getState());
+
+    clock.set(1000);
+    Thread probe = new Thread(() -> {
+      try {
+        guard.call(() -> "unexpected");
+      } catch (Exception expected) {
+        // interrupted while waiting for a permit
+      }
+    });
+    probe.start();
+    waitUntilWaiting(probe);
+    assertEquals(MagentoGuard.State.HALF_OPEN, guard.getState());
+    probe.interrupt();
+    probe.join(5000);
+    assertFalse("probe did not stop", probe.isAlive());
+    assertEquals(MagentoGuard.State.OPEN, guard.getState());
+    assertEquals(2, guard.getFailedCount());
+
+    release.countDown();
+    holder.join(5000);
+    assertEquals("ok", holderResult.get());
+    expectFailureOf(failing);
+    clock.set(2000);
+    assertTrue("probe was not released", guard.isCallPermitted());
+  }
+
+  private MagentoGuard openGuard() throws Exception {
+    MagentoGuard guard = new MagentoGuard("price", 4, 0, 1, 1000, clock::get);
+    expectFailure(() -> guard.call(() -> {
+      throw new IOException("Magento down");
+    }));
+    assertEquals(MagentoGuard.State.OPEN, guard.getState());
+    return guard;
+  }
+
+  /*Wait until thread is parked, e.g. on the permit semaphore of a guard */
+  private static void waitUntilWaiting(Thread thread) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (thread.getState() != Thread.State.TIMED_WAITING && thread.getState() != Thread.State.WAITING) {
+      assertTrue("thread did not block", System.nanoTime() < deadline);
+      Thread.sleep(1);
+    }
+  }
+
+  private static void expectFailureOf(Future<?> call) throws Exception {
+    try {
+      call.get(5, TimeUnit.SECONDS);
+    } catch (ExecutionException e) {
+      return;
+    }
+    fail("expected the call to fail");
+  }
+
+  private interface Call {
+    void run() throws Exception;
+  }
+
+  private static void expectUnavailable(Call call) throws Exception {
+    try {
+      call.run();
+    } catch (MagentoUnavailableException e) {
+      return;
+    }
+    fail("expected MagentoUnavailableException");
+  }
+
+  private static void expectFailure(Call call) {
+    try {
+      call.run();
+    } catch (MagentoUnavailableException e) {
+      throw new AssertionError("call was rejected instead of reaching Magento", e);
+    } catch (Exception e) {
+      return;
+    }
+    fail("expected the call to fail");
+  }
+}
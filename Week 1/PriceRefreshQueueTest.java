@@ -0,0 +1,107 @@
+package vn.edu.topica.eco.api.middleware.cache;
+
+import com.google.common.collect.ImmutableSet;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/*Checks of PriceRefreshQueue. Size flushes are driven by the batch size with a delay far beyond the
+ * test, and the in-flight case holds each refresh on a semaphore, so only the timed flush test waits */
+public class PriceRefreshQueueTest {
+
+  private static final long NEVER_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+  private final BlockingQueue<List<String>> batches = new LinkedBlockingQueue<>();
+  private PriceRefreshQueue queue;
+
+  @After
+  public void tearDown() {
+    if (queue != null) {
+      queue.shutdown();
+    }
+  }
+
+  /*A sku queued again before the flush is refreshed once */
+  @Test
+  public void duplicatesBeforeFlushAreRefreshedOnce() throws Exception {
+    queue = new PriceRefreshQueue(batch -> batches.add(new ArrayList<>(batch)), 3, NEVER_MILLIS);
+    queue.enqueue(Arrays.asList("a", "b"));
+    queue.enqueue(Arrays.asList("b", "a", "", null));
+    assertEquals(2, queue.getPendingCount());
+    queue.enqueue(Collections.singletonList("c"));
+    List<String> batch = nextBatch();
+    assertEquals(3, batch.size());
+    assertEquals(ImmutableSet.of("a", "b", "c"), new HashSet<>(batch));
+    assertEquals(0, queue.getPendingCount());
+  }
+
+  /*A sku queued while its refresh runs is skipped, other skus wait for the next flush */
+  @Test
+  public void inFlightSkusAreSkipped() throws Exception {
+    Semaphore finish = new Semaphore(0);
+    queue = new PriceRefreshQueue(batch -> {
+      batches.add(new ArrayList<>(batch));
+      finish.acquire();
+    }, 2, NEVER_MILLIS);
+    queue.enqueue(Arrays.asList("a", "b"));
+    assertEquals(ImmutableSet.of("a", "b"), new HashSet<>(nextBatch()));
+
+    queue.enqueue(Arrays.asList("a", "c"));
+    assertEquals(1, queue.getPendingCount());
+    finish.release();
+    queue.enqueue(Collections.singletonList("d"));
+    assertEquals(ImmutableSet.of("c", "d"), new HashSet<>(nextBatch()));
+
+    // the first refresh is over once the second one runs, a is no longer in flight
+    queue.enqueue(Collections.singletonList("a"));
+    assertEquals(1, queue.getPendingCount());
+  }
+
+  /*Reaching batchSize flushes at once, everything pending is refreshed batchSize at a time */
+  @Test
+  public void sizeFlushSplitsIntoBatches() throws Exception {
+    queue = new PriceRefreshQueue(batch -> batches.add(new ArrayList<>(batch)), 2, NEVER_MILLIS);
+    queue.enqueue(Arrays.asList("a", "b", "c", "d", "e"));
+    Set<String> refreshed = new HashSet<>();
+    for (int expectedSize : new int[]{2, 2, 1}) {
+      List<String> batch = nextBatch();
+      assertEquals(expectedSize, batch.size());
+      refreshed.addAll(batch);
+    }
+    assertEquals(ImmutableSet.of("a", "b", "c", "d", "e"), refreshed);
+    assertEquals(0, queue.getPendingCount());
+  }
+
+  /*Below batchSize, pending skus are flushed maxDelayMillis after the first one was queued */
+  @Test
+  public void timedFlushBelowBatchSize() throws Exception {
+    long maxDelayMillis = 100;
+    queue = new PriceRefreshQueue(batch -> batches.add(new ArrayList<>(batch)), 100, maxDelayMillis);
+    long start = System.nanoTime();
+    queue.enqueue(Arrays.asList("a", "b"));
+    List<String> batch = nextBatch();
+    long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    assertTrue("flushed after " + elapsedMillis + "ms", elapsedMillis >= maxDelayMillis);
+    assertEquals(ImmutableSet.of("a", "b"), new HashSet<>(batch));
+  }
+
+  private List<String> nextBatch() throws InterruptedException {
+    List<String> batch = batches.poll(5, TimeUnit.SECONDS);
+    assertNotNull("no batch refreshed", batch);
+    return batch;
+  }
+}
@@ -0,0 +1,194 @@
+package vn.edu.topica.eco.api.middleware.standin;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableMap;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.mockito.stubbing.Answer;
+import org.springframework.cache.CacheManager;
+import org.springframework.cache.concurrent.ConcurrentMapCacheManager;
+import vn.edu.topica.eco.api.middleware.cache.CacheMetrics;
+import vn.edu.topica.eco.api.middleware.cache.CourseFragmentCache;
+import vn.edu.topica.eco.api.middleware.cache.PersonalCourseCacheUpdater;
+import vn.edu.topica.eco.api.middleware.cache.PriceCacheStore;
+import vn.edu.topica.eco.api.middleware.model.magento.cart.MagentoCart;
+import vn.edu.topica.eco.api.middleware.model.magento.course.CoursePrice;
+import vn.edu.topica.eco.api.middleware.model.magento.course.MagentoCourse;
+import vn.edu.topica.eco.api.middleware.model.magento.wishlist.MagentoWishlistItem;
+import vn.edu.topica.eco.api.middleware.model.support.Response;
+import vn.edu.topica.eco.api.middleware.repository.CartRepository;
+import vn.edu.topica.eco.api.middleware.repository.CourseRepository;
+import vn.edu.topica.eco.api.middleware.repository.PriceRepository;
+import vn.edu.topica.eco.api.middleware.repository.WishlistRepository;
+import vn.edu.topica.eco.api.middleware.resilience.MagentoGuards;
+import vn.edu.topica.eco.api.middleware.service.v1.CachedPriceReader;
+import vn.edu.topica.eco.api.middleware.service.v1.impl.PriceServiceImpl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+import static vn.edu.topica.eco.api.middleware.constant.CacheConst.CacheName.*;
+
+/*In-memory stand-ins for the Magento repositories and the CacheManager used by the service layer.
+ * Every repository call waits for one sample of its LatencyProfile, then answers with a canned
+ * payload, so benchmarks and tests measure the service code plus a controlled amount of Magento
+ * latency. Kept with the test sources, the benchmarks depend on them.
+ * Repositories are stub-only mocks, they do not record invocations */
+public final class StandIns {
+
+  private static final ObjectMapper MAPPER = new ObjectMapper()
+    .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+  private StandIns() {
+  }
+
+  /*@return in-memory CacheManager with the personal and price caches */
+  public static CacheManager cacheManager() {
+    return new ConcurrentMapCacheManager(
+      COURSES_IN_CART.name(), COURSES_IN_WISHLIST.name(), COURSES_OWNED.name(), PRICE_CACHE_BLOCK.name(),
+      PersonalCourseCacheUpdater.GUEST_CART_CACHE);
+  }
+
+  /*@return CacheMetrics recording to an in-memory registry */
+  public static CacheMetrics cacheMetrics() {
+    return new CacheMetrics(new SimpleMeterRegistry());
+  }
+
+  /*@return MagentoGuards with the default limits, recording to an in-memory registry */
+  public static MagentoGuards magentoGuards() {
+    return new MagentoGuards(new SimpleMeterRegistry(), 32, 50, 5, 10000);
+  }
+
+  /*@return CourseFragmentCache with the default limits */
+  public static CourseFragmentCache courseFragmentCache() {
+    return new CourseFragmentCache(cacheMetrics(), 10000, 600, 100000);
+  }
+
+  /*@return price cache reader of CourseServiceImpl: a PriceServiceImpl on PRICE_CACHE_BLOCK of
+   * cacheManager, refreshing synchronously from a price repository without latency */
+  public static CachedPriceReader cachedPriceReader(CacheManager cacheManager) throws Exception {
+    return new PriceServiceImpl(priceRepository(LatencyProfile.NONE), new PriceCacheStore(cacheManager),
+      cacheMetrics(), magentoGuards(), false, 100, 200);
+  }
+
+  /*@param number of courses
+   * @return courses with sku "sku-0" .. "sku-(n-1)" and a price */
+  public static List<MagentoCourse> courses(int count) {
+    List<MagentoCourse> courses = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      MagentoCourse course = new MagentoCourse();
+      course.setSku(sku(i));
+      course.setPrice(1000.0 + i);
+      course.setFinalPrice(900.0 + i);
+      courses.add(course);
+    }
+    return courses;
+  }
+
+  public static List<String> skus(int from, int count) {
+    List<String> skus = new ArrayList<>(count);
+    for (int i = from; i < from + count; i++) {
+      skus.add(sku(i));
+    }
+    return skus;
+  }
+
+  public static String sku(int i) {
+    return "sku-" + i;
+  }
+
+  /*Price repository answering getCoursePrices(skus) with a price for every requested sku.
+   * One Response is reused, its data is the last payload built on the calling thread, so no mock
+   * is created per call */
+  public static PriceRepository priceRepository(LatencyProfile latency) throws Exception {
+    ThreadLocal<List<CoursePrice>> lastPrices = new ThreadLocal<>();
+    Response response = mock(Response.class, withSettings().stubOnly());
+    when(response.isOk()).thenReturn(true);
+    when(response.getData()).thenAnswer(invocation -> lastPrices.get());
+
+    PriceRepository repository = mock(PriceRepository.class, withSettings().stubOnly());
+    when(repository.getCoursePrices(anyList())).thenAnswer(invocation -> {
+      latency.pause();
+      List<String> skus = invocation.getArgument(0);
+      List<CoursePrice> prices = new ArrayList<>(skus.size());
+      for (String sku : skus) {
+        CoursePrice price = new CoursePrice();
+        price.setSku(sku);
+        price.setOriginalPrice(1000.0);
+        price.setDiscountPrice(900.0);
+        prices.add(price);
+      }
+      lastPrices.set(prices);
+      return response;
+    });
+    return repository;
+  }
+
+  /*Cart repository answering every customer with a cart of the given skus */
+  public static CartRepository cartRepository(LatencyProfile latency, List<String> skus) throws Exception {
+    Response response = okResponse(cart(skus));
+    CartRepository repository = mock(CartRepository.class, withSettings().stubOnly());
+    Answer<Response> answer = invocation -> {
+      latency.pause();
+      return response;
+    };
+    when(repository.getCustomerCartTotalInfo(anyInt())).thenAnswer(answer);
+    when(repository.getGuestCartTotalInfo(anyString())).thenAnswer(answer);
+    return repository;
+  }
+
+  /*Wishlist repository answering every customer with a wishlist of the given skus */
+  public static WishlistRepository wishlistRepository(LatencyProfile latency, List<String> skus) throws Exception {
+    List<MagentoWishlistItem> wishlist = new ArrayList<>(skus.size());
+    for (String sku : skus) {
+      MagentoCourse course = new MagentoCourse();
+      course.setSku(sku);
+      MagentoWishlistItem item = mock(MagentoWishlistItem.class, withSettings().stubOnly());
+      when(item.getMagentoCourse()).thenReturn(course);
+      wishlist.add(item);
+    }
+    Response response = okResponse(wishlist);
+    WishlistRepository repository = mock(WishlistRepository.class, withSettings().stubOnly());
+    when(repository.getWishlist(anyInt())).thenAnswer(invocation -> {
+      latency.pause();
+      return response;
+    });
+    return repository;
+  }
+
+  /*Course repository answering every token with the given owned skus */
+  public static CourseRepository courseRepository(LatencyProfile latency, List<String> ownedSkus) throws Exception {
+    Response response = okResponse(Collections.unmodifiableList(new ArrayList<>(ownedSkus)));
+    CourseRepository repository = mock(CourseRepository.class, withSettings().stubOnly());
+    when(repository.getOwnedCourses(anyString())).thenAnswer(invocation -> {
+      latency.pause();
+      return response;
+    });
+    return repository;
+  }
+
+  /*Build a MagentoCart the way it is read from the Magento REST payload
+   * @param skus of cart items */
+  public static MagentoCart cart(List<String> skus) {
+    List<Map<String, Object>> items = skus.stream()
+      .map(sku -> ImmutableMap.<String, Object>of("extension_attributes", ImmutableMap.of("sku", sku)))
+      .collect(Collectors.toList());
+    return MAPPER.convertValue(ImmutableMap.of("items", items), MagentoCart.class);
+  }
+
+  public static Response okResponse(Object data) {
+    Response response = mock(Response.class, withSettings().stubOnly());
+    when(response.isOk()).thenReturn(true);
+    when(response.getData()).thenReturn(data);
+    return response;
+  }
+}
@@ -0,0 +1,167 @@
+package vn.edu.topica.eco.api.middleware.controller;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Set;
+
+/*Compare and copy JSON documents token by token, in memory bounded by the nesting depth instead of the
+ * document size. Ignore paths are JSON pointers ("/extra/access_token") or, without a leading slash,
+ * field names matched at any depth ("access_token").
+ *
+ * assertEquals() walks both documents in lockstep, so fields must come in the same order, which holds
+ * for snapshots written by the same serializer. Arrays are compared in order. Not strict, the actual
+ * document may have fields the expected one has not */
+public final class StreamingJson {
+
+  private final JsonFactory factory;
+  private final Set<String> ignorePaths;
+  private final boolean hasPointers;
+
+  public StreamingJson(JsonFactory factory, Set<String> ignorePaths) {
+    this.factory = factory;
+    this.ignorePaths = ignorePaths;
+    this.hasPointers = ignorePaths.stream().anyMatch(path -> path.startsWith("/"));
+  }
+
+  /*@param expected and actual documents, false to allow extra fields in actual
+   * @throws AssertionError at the first difference, with its JSON pointer */
+  public void assertEquals(InputStream expected, InputStream actual, boolean strict) throws IOException {
+    try (JsonParser expectedParser = factory.createParser(expected);
+         JsonParser actualParser = factory.createParser(actual)) {
+      JsonToken expectedToken = expectedParser.nextToken();
+      JsonToken actualToken = actualParser.nextToken();
+      if (expectedToken == null || actualToken == null) {
+        if (expectedToken != actualToken) {
+          throw new AssertionError("Expected " + expectedToken + " document but was " + actualToken);
+        }
+        return;
+      }
+      compareValue(expectedParser, actualParser, strict);
+      if (actualParser.nextToken() != null) {
+        throw new AssertionError("Unexpected content after the document");
+      }
+    }
+  }
+
+  /*Copy a document, pretty printed, writing maskValue instead of every non null scalar at an ignore path */
+  public void copy(InputStream in, OutputStream out, String maskValue) throws IOException {
+    try (JsonParser parser = factory.createParser(in);
+         JsonGenerator generator = factory.createGenerator(out)) {
+      generator.setPrettyPrinter(new DefaultPrettyPrinter());
+      JsonToken token;
+      while ((token = parser.nextToken()) != null) {
+        if (token == JsonToken.FIELD_NAME && isIgnored(parser)) {
+          generator.writeFieldName(parser.getCurrentName());
+          JsonToken value = parser.nextToken();
+          if (value.isScalarValue() && value != JsonToken.VALUE_NULL) {
+            generator.writeString(maskValue);
+          } else {
+            generator.copyCurrentStructure(parser);
+          }
+        } else {
+          generator.copyCurrentEvent(parser);
+        }
+      }
+    }
+  }
+
+  private void compareValue(JsonParser expected, JsonParser actual, boolean strict) throws IOException {
+    JsonToken expectedToken = expected.currentToken();
+    JsonToken actualToken = actual.currentToken();
+    if (expectedToken != actualToken && !(expectedToken.isNumeric() && actualToken.isNumeric())) {
+      fail(expected, "expected " + expectedToken + " but was " + actualToken);
+    }
+    switch (expectedToken) {
+      case START_OBJECT:
+        compareObject(expected, actual, strict);
+        break;
+      case START_ARRAY:
+        compareArray(expected, actual, strict);
+        break;
+      case VALUE_STRING:
+        if (!expected.getText().equals(actual.getText())) {
+          fail(expected, "expected \"" + expected.getText() + "\" but was \"" + actual.getText() + "\"");
+        }
+        break;
+      case VALUE_NUMBER_INT:
+      case VALUE_NUMBER_FLOAT:
+        if (expected.getDecimalValue().compareTo(actual.getDecimalValue()) != 0) {
+          fail(expected, "expected " + expected.getText() + " but was " + actual.getText());
+        }
+        break;
+      default:
+        break;
+    }
+  }
+
+  private void compareObject(JsonParser expected, JsonParser actual, boolean strict) throws IOException {
+    while (expected.nextToken() == JsonToken.FIELD_NAME) {
+      String name = expected.getCurrentName();
+      if (isIgnored(expected)) {
+        expected.nextToken();
+        expected.skipChildren();
+        continue;
+      }
+      JsonToken actualToken = actual.nextToken();
+      while (actualToken == JsonToken.FIELD_NAME && !name.equals(actual.getCurrentName())) {
+        if (strict && !isIgnored(actual)) {
+          fail(actual, "unexpected field");
+        }
+        actual.nextToken();
+        actual.skipChildren();
+        actualToken = actual.nextToken();
+      }
+      if (actualToken != JsonToken.FIELD_NAME) {
+        fail(expected, "missing field");
+      }
+      expected.nextToken();
+      actual.nextToken();
+      compareValue(expected, actual, strict);
+    }
+    while (actual.nextToken() == JsonToken.FIELD_NAME) {
+      if (strict && !isIgnored(actual)) {
+        fail(actual, "unexpected field");
+      }
+      actual.nextToken();
+      actual.skipChildren();
+    }
+  }
+
+  private void compareArray(JsonParser expected, JsonParser actual, boolean strict) throws IOException {
+    int index = 0;
+    while (true) {
+      JsonToken expectedToken = expected.nextToken();
+      JsonToken actualToken = actual.nextToken();
+      if (expectedToken == JsonToken.END_ARRAY || actualToken == JsonToken.END_ARRAY) {
+        if (expectedToken != actualToken) {
+          fail(expected, "arrays differ in length at index " + index);
+        }
+        return;
+      }
+      compareValue(expected, actual, strict);
+      index++;
+    }
+  }
+
+  /*@param parser on a FIELD_NAME token */
+  private boolean isIgnored(JsonParser parser) {
+    if (ignorePaths.isEmpty()) {
+      return false;
+    }
+    if (ignorePaths.contains(parser.getCurrentName())) {
+      return true;
+    }
+    return hasPointers && ignorePaths.contains(parser.getParsingContext().pathAsPointer().toString());
+  }
+
+  private static void fail(JsonParser parser, String message) {
+    throw new AssertionError(parser.getParsingContext().pathAsPointer() + ": " + message);
+  }
+}
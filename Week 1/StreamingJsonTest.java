@@ -0,0 +1,102 @@
+package vn.edu.topica.eco.api.middleware.controller;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.ImmutableSet;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/*Checks of StreamingJson on small inline documents, single quotes stand for double quotes */
+public class StreamingJsonTest {
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+  private static final StreamingJson PLAIN = new StreamingJson(MAPPER.getFactory(), Collections.emptySet());
+
+  /*Fields are matched in order: the same fields in another order are a difference, strict or not */
+  @Test
+  public void fieldsMustComeInTheSameOrder() throws Exception {
+    PLAIN.assertEquals(json("{'a':1,'b':{'c':[1,2]}}"), json("{'a':1,'b':{'c':[1,2]}}"), true);
+    expectDifference(PLAIN, "{'a':1,'b':2}", "{'b':2,'a':1}", false, "/b: missing field");
+    expectDifference(PLAIN, "{'a':1,'b':2}", "{'b':2,'a':1}", true, "/b: unexpected field");
+    expectDifference(PLAIN, "{'a':[1,2]}", "{'a':[2,1]}", false, "/a/0: expected 1 but was 2");
+  }
+
+  /*Extra fields of the actual document are skipped unless strict, missing ones always fail */
+  @Test
+  public void extraFieldsFailOnlyWhenStrict() throws Exception {
+    PLAIN.assertEquals(json("{'a':1,'c':3}"), json("{'a':1,'b':2,'c':3,'d':4}"), false);
+    expectDifference(PLAIN, "{'a':1,'c':3}", "{'a':1,'b':2,'c':3}", true, "/b: unexpected field");
+    expectDifference(PLAIN, "{'a':1,'c':3}", "{'a':1,'c':3,'d':4}", true, "/d: unexpected field");
+    expectDifference(PLAIN, "{'a':1,'c':3}", "{'a':1}", false, "/c: missing field");
+  }
+
+  /*A pointer ignores one path only, a bare name ignores the field at any depth, in both documents */
+  @Test
+  public void pointerAndBareNameIgnores() throws Exception {
+    StreamingJson pointer = new StreamingJson(MAPPER.getFactory(), ImmutableSet.of("/data/access_token"));
+    pointer.assertEquals(json("{'data':{'access_token':'x','id':1}}"),
+      json("{'data':{'access_token':'y','id':1}}"), true);
+    pointer.assertEquals(json("{'data':{'id':1}}"), json("{'data':{'access_token':'y','id':1}}"), true);
+    expectDifference(pointer, "{'extra':{'access_token':'x'}}", "{'extra':{'access_token':'y'}}", true,
+      "/extra/access_token: expected \"x\" but was \"y\"");
+
+    StreamingJson bareName = new StreamingJson(MAPPER.getFactory(), ImmutableSet.of("access_token"));
+    bareName.assertEquals(json("{'access_token':'x','extra':{'access_token':'x'},'list':[{'access_token':'x'}]}"),
+      json("{'access_token':'y','extra':{'access_token':'y'},'list':[{'access_token':'y'}]}"), true);
+    bareName.assertEquals(json("{'extra':{}}"), json("{'extra':{'access_token':'y'}}"), true);
+  }
+
+  /*Numbers compare by value whether written as int or float, not against other token types */
+  @Test
+  public void numbersCompareByValue() throws Exception {
+    PLAIN.assertEquals(json("{'price':100}"), json("{'price':100.0}"), true);
+    PLAIN.assertEquals(json("{'price':1.50}"), json("{'price':1.5}"), true);
+    expectDifference(PLAIN, "{'price':100}", "{'price':100.5}", true, "/price: expected 100 but was 100.5");
+    expectDifference(PLAIN, "{'price':100}", "{'price':'100'}", true,
+      "/price: expected VALUE_NUMBER_INT but was VALUE_STRING");
+  }
+
+  /*copy() of the ApiSteps paths gives the same document as hideToken(), null tokens are kept */
+  @Test
+  public void copyMasksLikeHideToken() throws Exception {
+    for (String document : new String[]{
+      "{'access_token':'secret','id':1}",
+      "{'id':1,'extra':{'access_token':'secret','expires':3600}}",
+      "{'data':{'access_token':'secret','name':'course'},'code':200}",
+      "{'data':{'access_token':null},'code':200}",
+      "{'id':1}"}) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      ApiSteps.STREAMING_JSON.copy(json(document), out, ApiSteps.FAKE_TOKEN);
+      ObjectNode hidden = (ObjectNode) MAPPER.readTree(json(document));
+      ApiSteps.hideToken(hidden);
+      JsonNode copied = MAPPER.readTree(out.toByteArray());
+      assertEquals(document, hidden, copied);
+    }
+  }
+
+  private static void expectDifference(StreamingJson streamingJson, String expected, String actual,
+                                       boolean strict, String message) throws IOException {
+    try {
+      streamingJson.assertEquals(json(expected), json(actual), strict);
+    } catch (AssertionError e) {
+      assertTrue("unexpected message " + e.getMessage(), e.getMessage().startsWith(message));
+      return;
+    }
+    fail(expected + " and " + actual + " should differ");
+  }
+
+  private static InputStream json(String singleQuoted) {
+    return new ByteArrayInputStream(singleQuoted.replace('\'', '"').getBytes(StandardCharsets.UTF_8));
+  }
+}
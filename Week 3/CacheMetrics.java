@@ -0,0 +1,137 @@
+package vn.edu.topica.eco.api.middleware.cache;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+import vn.edu.topica.eco.api.middleware.constant.CacheConst.CacheName;
+import vn.edu.topica.eco.api.middleware.util.SingleFlight;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.ToDoubleFunction;
+
+/*Micrometer metrics of the personal and price caches and of the Magento calls that fill them.
+ *  middleware.cache.requests{cache, result}: lookups by result hit, stale, expired or miss, and
+ *    fallback: an expired entry served because Magento failed or its circuit is open
+ *  middleware.magento.calls{repository, method, outcome}: latency of Magento repository calls
+ *  middleware.cache.size{cache}: number of entries of a cache
+ *  middleware.price.expired.skus: expired skus found per price update request
+ *  middleware.singleflight.calls{loads, outcome}: calls of a SingleFlight that ran the loader
+ *    (executed) or joined an in-flight one (coalesced)
+ * Meters are registered once and kept, so recording on a hot path is a map read, not a registry lookup */
+@Component
+public class CacheMetrics {
+
+  public enum Result { HIT, STALE, EXPIRED, MISS, FALLBACK }
+
+  private final MeterRegistry registry;
+  private final Map<CacheName, Map<Result, Counter>> requestCounters;
+  private final ConcurrentMap<String, Map<Result, Counter>> namedRequestCounters = new ConcurrentHashMap<>();
+  /*repository -> method -> timers by outcome, index SUCCESS or ERROR */
+  private final ConcurrentMap<String, ConcurrentMap<String, Timer[]>> magentoCallTimers = new ConcurrentHashMap<>();
+  private final DistributionSummary expiredSkus;
+
+  private static final int SUCCESS = 0;
+  private static final int ERROR = 1;
+
+  public CacheMetrics(MeterRegistry registry) {
+    this.registry = registry;
+    Map<CacheName, Map<Result, Counter>> counters = new EnumMap<>(CacheName.class);
+    for (CacheName cacheName : CacheName.values()) {
+      counters.put(cacheName, requestCounters(cacheName.name()));
+    }
+    this.requestCounters = Collections.unmodifiableMap(counters);
+    this.expiredSkus = DistributionSummary.builder("middleware.price.expired.skus")
+      .publishPercentileHistogram()
+      .register(registry);
+  }
+
+  /*Count one lookup of cacheName */
+  public void record(CacheName cacheName, Result result) {
+    record(cacheName, result, 1);
+  }
+
+  /*Count one lookup of a cache that is not a CacheConst.CacheName, like the guest cart cache */
+  public void record(String cacheName, Result result) {
+    namedRequestCounters.computeIfAbsent(cacheName, this::requestCounters).get(result).increment();
+  }
+
+  /*Count amount lookups of cacheName at once, used by batch lookups of a page */
+  public void record(CacheName cacheName, Result result, int amount) {
+    if (amount > 0) {
+      requestCounters.get(cacheName).get(result).increment(amount);
+    }
+  }
+
+  /*Record number of expired skus found by one price update request */
+  public void recordExpiredSkus(int count) {
+    expiredSkus.record(count);
+  }
+
+  /*Time a Magento repository call, tagged with its outcome
+   * @param repository name, method name, the call
+   * @return result of the call */
+  public <T> T recordMagentoCall(String repository, String method, Callable<T> call) throws Exception {
+    Timer[] timers = magentoCallTimers
+      .computeIfAbsent(repository, key -> new ConcurrentHashMap<>())
+      .computeIfAbsent(method, key -> new Timer[]{
+        magentoCallTimer(repository, method, "success"),
+        magentoCallTimer(repository, method, "error")});
+    Timer.Sample sample = Timer.start(registry);
+    int outcome = ERROR;
+    try {
+      T result = call.call();
+      outcome = SUCCESS;
+      return result;
+    } finally {
+      sample.stop(timers[outcome]);
+    }
+  }
+
+  /*Expose the size of cacheName as a gauge
+   * @param cache name, object holding the cache, function reading its size */
+  public <T> void gaugeSize(CacheName cacheName, T source, ToDoubleFunction<T> size) {
+    registry.gauge("middleware.cache.size", Tags.of("cache", cacheName.name()), source, size);
+  }
+
+  /*Expose the executed and coalesced calls of a SingleFlight as counters
+   * @param name of the loads, the SingleFlight */
+  public void countSingleFlight(String loads, SingleFlight<?, ?> singleFlight) {
+    FunctionCounter.builder("middleware.singleflight.calls", singleFlight, SingleFlight::getExecutedCount)
+      .tag("loads", loads)
+      .tag("outcome", "executed")
+      .register(registry);
+    FunctionCounter.builder("middleware.singleflight.calls", singleFlight, SingleFlight::getCoalescedCount)
+      .tag("loads", loads)
+      .tag("outcome", "coalesced")
+      .register(registry);
+  }
+
+  private Map<Result, Counter> requestCounters(String cacheName) {
+    Map<Result, Counter> byResult = new EnumMap<>(Result.class);
+    for (Result result : Result.values()) {
+      byResult.put(result, Counter.builder("middleware.cache.requests")
+        .tag("cache", cacheName)
+        .tag("result", result.name().toLowerCase())
+        .register(registry));
+    }
+    return byResult;
+  }
+
+  private Timer magentoCallTimer(String repository, String method, String outcome) {
+    return Timer.builder("middleware.magento.calls")
+      .tag("repository", repository)
+      .tag("method", method)
+      .tag("outcome", outcome)
+      .publishPercentileHistogram()
+      .register(registry);
+  }
+}
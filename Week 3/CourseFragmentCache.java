@@ -0,0 +1,173 @@
+package vn.edu.topica.eco.api.middleware.cache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import lombok.Data;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import vn.edu.topica.eco.api.middleware.model.magento.course.CoursePrice;
+import vn.edu.topica.eco.api.middleware.util.SingleFlight;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/*Cache of pre-adapted, price independent response fragments (TopOfCatWrapper, TopOfMarket,
+ * CourseDetail, Curriculum, RelatedCourse), keyed by kind, scope, market type and page, so listing and
+ * detail requests skip both Magento and the adapters. Prices are not part of a fragment, they are
+ * overlaid at serve time from PRICE_CACHE_BLOCK.
+ *
+ * Invalidation is by version: the catalogue, every scope (category id for listings, course sku for
+ * detail fragments) and every market type have a version, a fragment remembers the versions it was
+ * built at and is rebuilt when one of them moved. Versions are read before the load, so a fragment
+ * built across an invalidation is stale at once, and a request that joined such a load loads again.
+ * course-fragments.ttl-seconds bounds the age of a fragment whose changes were not signalled.
+ * Scope and market versions are kept for course-fragments.max-versions names; past that they are
+ * all dropped together with a catalogue invalidation, since a dropped version would read as 0 again */
+@Component
+public class CourseFragmentCache {
+
+  public static final String COURSE_FRAGMENT_CACHE = "COURSE_FRAGMENTS";
+
+  /*Loads of one get() when every load returned a fragment already stale, e.g. under an invalidation storm */
+  private static final int MAX_LOADS = 3;
+
+  public enum Kind { TOP_OF_CATEGORY, TOP_OF_MARKET, COURSE_DETAIL, CURRICULUM, RELATED_COURSES }
+
+  /*Copy a cached fragment with the given prices applied, the cached fragment must not be changed
+   * @param cached fragment, cached prices by sku of the fragment courses, missing if not cached */
+  public interface PriceOverlay<T> {
+    T overlay(T fragment, Map<String, CoursePrice> prices);
+  }
+
+  private final CacheMetrics cacheMetrics;
+  private final Cache<FragmentKey, Fragment<?>> fragments;
+  private final SingleFlight<FragmentKey, Fragment<?>> loads = new SingleFlight<>();
+  private final AtomicLong catalogueVersion = new AtomicLong();
+  private final ConcurrentMap<String, AtomicLong> scopeVersions = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, AtomicLong> marketVersions = new ConcurrentHashMap<>();
+  private final int maxVersions;
+
+  public CourseFragmentCache(CacheMetrics cacheMetrics,
+                             @Value("${course-fragments.max-size:10000}") long maximumSize,
+                             @Value("${course-fragments.ttl-seconds:600}") long ttlSeconds,
+                             @Value("${course-fragments.max-versions:100000}") int maxVersions) {
+    this.cacheMetrics = cacheMetrics;
+    this.maxVersions = maxVersions;
+    this.fragments = CacheBuilder.newBuilder()
+      .maximumSize(maximumSize)
+      .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+      .build();
+    cacheMetrics.countSingleFlight("course-fragments", loads);
+  }
+
+  /*Get a fragment from cache, or build it with loader when it is missing or its versions moved.
+   * Concurrent misses of the same key share one load, a shared load that turns out stale is redone
+   * @param key, loader building the adapted fragment, function listing the skus of its courses
+   * @return cached fragment */
+  @SuppressWarnings("unchecked")
+  public <T> Fragment<T> get(FragmentKey key, Callable<T> loader,
+                             Function<T, Collection<String>> skusOf) throws Exception {
+    Fragment<?> fragment = fragments.getIfPresent(key);
+    if (fragment != null && isCurrent(key, fragment)) {
+      cacheMetrics.record(COURSE_FRAGMENT_CACHE, CacheMetrics.Result.HIT);
+      return (Fragment<T>) fragment;
+    }
+    cacheMetrics.record(COURSE_FRAGMENT_CACHE, fragment == null ? CacheMetrics.Result.MISS : CacheMetrics.Result.EXPIRED);
+    Fragment<?> loaded = null;
+    for (int attempt = 0; attempt < MAX_LOADS; attempt++) {
+      loaded = loads.execute(key, () -> load(key, loader, skusOf));
+      if (isCurrent(key, loaded)) {
+        break;
+      }
+    }
+    return (Fragment<T>) loaded;
+  }
+
+  private <T> Fragment<T> load(FragmentKey key, Callable<T> loader,
+                               Function<T, Collection<String>> skusOf) throws Exception {
+    long catalogue = catalogueVersion.get();
+    long scope = version(scopeVersions, key.getScope());
+    long market = version(marketVersions, key.getMarketType());
+    T value = loader.call();
+    Collection<String> skus = skusOf.apply(value);
+    Fragment<T> loaded = new Fragment<>(value,
+      skus == null ? Collections.<String>emptyList() : Collections.unmodifiableList(new ArrayList<>(skus)),
+      catalogue, scope, market);
+    fragments.put(key, loaded);
+    return loaded;
+  }
+
+  /*Course data of a category or of one course changed, e.g. a course was added, edited or removed */
+  public void invalidateScope(String scope) {
+    bump(scopeVersions, scope);
+  }
+
+  /*Courses of a market type changed */
+  public void invalidateMarket(String marketType) {
+    bump(marketVersions, marketType);
+  }
+
+  /*The whole catalogue changed, e.g. after a reindex */
+  public void invalidateAll() {
+    catalogueVersion.incrementAndGet();
+  }
+
+  public long size() {
+    return fragments.size();
+  }
+
+  /*Scope and market are read before the catalogue: a version dropped by bump() reads as 0, and the
+   * catalogue invalidation made before dropping it is then seen */
+  private boolean isCurrent(FragmentKey key, Fragment<?> fragment) {
+    return fragment.getScopeVersion() == version(scopeVersions, key.getScope())
+      && fragment.getMarketVersion() == version(marketVersions, key.getMarketType())
+      && fragment.getCatalogueVersion() == catalogueVersion.get();
+  }
+
+  private static long version(ConcurrentMap<String, AtomicLong> versions, String name) {
+    if (name == null) {
+      return 0;
+    }
+    AtomicLong version = versions.get(name);
+    return version == null ? 0 : version.get();
+  }
+
+  private void bump(ConcurrentMap<String, AtomicLong> versions, String name) {
+    if (name == null) {
+      return;
+    }
+    if (versions.size() >= maxVersions && !versions.containsKey(name)) {
+      invalidateAll();
+      versions.clear();
+    }
+    versions.computeIfAbsent(name, key -> new AtomicLong()).incrementAndGet();
+  }
+
+  /*Key of a fragment: kind, category id or course sku, market type and page, null when not used */
+  @Data
+  public static class FragmentKey {
+    private final Kind kind;
+    private final String scope;
+    private final String marketType;
+    private final int page;
+  }
+
+  /*A fragment with the skus of its courses and the versions it was built at */
+  @Data
+  public static class Fragment<T> {
+    private final T value;
+    private final List<String> skus;
+    private final long catalogueVersion;
+    private final long scopeVersion;
+    private final long marketVersion;
+  }
+}
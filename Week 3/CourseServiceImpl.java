@@ -2,12 +2,20 @@ package vn.edu.topica.eco.api.middleware.service.v1.impl;
 
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import lombok.extern.slf4j.Slf4j;
 import one.util.streamex.StreamEx;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.cache.Cache;
 import org.springframework.cache.CacheManager;
 import org.springframework.stereotype.Service;
 import org.springframework.util.CollectionUtils;
+import vn.edu.topica.eco.api.middleware.cache.CacheMetrics;
+import vn.edu.topica.eco.api.middleware.cache.CourseFragmentCache;
+import vn.edu.topica.eco.api.middleware.cache.CourseFragmentCache.FragmentKey;
+import vn.edu.topica.eco.api.middleware.cache.CourseFragmentCache.PriceOverlay;
+import vn.edu.topica.eco.api.middleware.cache.CustomerTokenCache;
+import vn.edu.topica.eco.api.middleware.cache.PersonalCourseCacheUpdater;
 import vn.edu.topica.eco.api.middleware.constant.CacheConst;
 import vn.edu.topica.eco.api.middleware.constant.LocalConst;
 import vn.edu.topica.eco.api.middleware.constant.MagentoConst.MagentoProductStatus;
@@ -43,14 +51,24 @@ import vn.edu.topica.eco.api.middleware.model.support.adapter.v1.coursedetail.cu
 import vn.edu.topica.eco.api.middleware.repository.CartRepository;
 import vn.edu.topica.eco.api.middleware.repository.CourseRepository;
 import vn.edu.topica.eco.api.middleware.repository.WishlistRepository;
+import vn.edu.topica.eco.api.middleware.resilience.MagentoGuards;
+import vn.edu.topica.eco.api.middleware.service.v1.CachedPriceReader;
 import vn.edu.topica.eco.api.middleware.service.v1.CategoryService;
 import vn.edu.topica.eco.api.middleware.service.v1.CourseService;
 import vn.edu.topica.eco.api.middleware.service.v1.CustomerService;
+import vn.edu.topica.eco.api.middleware.util.PersonalCourseIndex;
+import vn.edu.topica.eco.api.middleware.util.SingleFlight;
+import vn.edu.topica.eco.api.middleware.util.SkuRegistry;
 import vn.edu.topica.eco.api.middleware.util.Utils;
 
+import javax.annotation.PreDestroy;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
+import static vn.edu.topica.eco.api.middleware.cache.PersonalCourseCacheUpdater.GUEST_CART_CACHE;
 import static vn.edu.topica.eco.api.middleware.constant.CacheConst.CacheName.*;
 import static vn.edu.topica.eco.api.middleware.constant.LocalConst.MARKET_TYPE_MAP;
 import static vn.edu.topica.eco.api.middleware.constant.MobileConst.*;
@@ -64,20 +82,86 @@ public class CourseServiceImpl implements CourseService {
   private final WishlistRepository wishlistRepository;
   private final CategoryService categoryService;
   private final CustomerService customerService;
+  private final CustomerTokenCache customerTokenCache;
   private final CacheManager cacheManager;
+  private final CacheMetrics cacheMetrics;
+  private final PersonalCourseCacheUpdater personalCourseCacheUpdater;
+  private final SkuRegistry skuRegistry;
+  private final MagentoGuards magentoGuards;
+  private final CourseFragmentCache courseFragmentCache;
+  private final CachedPriceReader cachedPriceReader;
+  private final boolean parallelPersonalLoad;
+  private final long personalLoadTimeoutMillis;
+  private final ExecutorService personalCoursesExecutor;
+  private final long personalHardTtlMillis;
+  private final ExecutorService personalRefreshExecutor;
+  private final Set<String> refreshingPersonalKeys = ConcurrentHashMap.newKeySet();
+  private final SingleFlight<String, List<String>> personalLoads = new SingleFlight<>();
+  private final AtomicBoolean guestCartCacheMissingLogged = new AtomicBoolean();
+
+  /*Personal course sources, in the order they are resolved*/
+  private static final List<CacheConst.CacheName> PERSONAL_CACHE_NAMES =
+    Collections.unmodifiableList(Arrays.asList(COURSES_IN_CART, COURSES_IN_WISHLIST, COURSES_OWNED));
 
   public CourseServiceImpl(CourseRepository courseRepository,
                            CartRepository cartRepository,
                            WishlistRepository wishlistRepository,
                            CategoryService categoryService,
                            CustomerService customerService,
-                           CacheManager cacheManager) {
+                           CustomerTokenCache customerTokenCache,
+                           CacheManager cacheManager,
+                           CacheMetrics cacheMetrics,
+                           PersonalCourseCacheUpdater personalCourseCacheUpdater,
+                           SkuRegistry skuRegistry,
+                           MagentoGuards magentoGuards,
+                           CourseFragmentCache courseFragmentCache,
+                           CachedPriceReader cachedPriceReader,
+                           @Value("${personal-courses.parallel-load:true}") boolean parallelPersonalLoad,
+                           @Value("${personal-courses.load-timeout-ms:3000}") long personalLoadTimeoutMillis,
+                           @Value("${personal-courses.load-threads:16}") int personalLoadThreads,
+                           @Value("${personal-courses.hard-ttl-ms:0}") long personalHardTtlMillis) {
     this.courseRepository = courseRepository;
     this.cartRepository = cartRepository;
     this.wishlistRepository = wishlistRepository;
     this.categoryService = categoryService;
     this.customerService = customerService;
+    this.customerTokenCache = customerTokenCache;
     this.cacheManager = cacheManager;
+    this.cacheMetrics = cacheMetrics;
+    cacheMetrics.countSingleFlight("personal-courses", personalLoads);
+    this.personalCourseCacheUpdater = personalCourseCacheUpdater;
+    this.skuRegistry = skuRegistry;
+    this.magentoGuards = magentoGuards;
+    this.courseFragmentCache = courseFragmentCache;
+    this.cachedPriceReader = cachedPriceReader;
+    this.parallelPersonalLoad = parallelPersonalLoad;
+    this.personalLoadTimeoutMillis = personalLoadTimeoutMillis;
+    this.personalCoursesExecutor = createPersonalCoursesExecutor(personalLoadThreads,
+      "personal-courses-%d", new ThreadPoolExecutor.CallerRunsPolicy());
+    this.personalHardTtlMillis = Math.max(personalHardTtlMillis, CacheConst.PERSONAL_CACHE_TTL.toMillis());
+    this.personalRefreshExecutor = createPersonalCoursesExecutor(Math.max(1, personalLoadThreads / 4),
+      "personal-courses-refresh-%d", new ThreadPoolExecutor.AbortPolicy());
+  }
+
+  /*Bounded pool for Magento calls of personal courses. The load pool runs the call on the request
+   * thread when its queue is full, so a burst degrades to the serial behaviour instead of failing.
+   * The refresh pool rejects instead, a skipped background refresh is retried by the next request
+   * @param number of threads, thread name format, policy when the queue is full
+   * @return new ExecutorService */
+  private static ExecutorService createPersonalCoursesExecutor(int threads, String nameFormat,
+                                                               RejectedExecutionHandler rejectedHandler) {
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+      new ArrayBlockingQueue<>(threads * 16),
+      new ThreadFactoryBuilder().setNameFormat(nameFormat).setDaemon(true).build(),
+      rejectedHandler);
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    personalCoursesExecutor.shutdownNow();
+    personalRefreshExecutor.shutdownNow();
   }
   
   /* ... */
@@ -85,22 +169,44 @@ public class CourseServiceImpl implements CourseService {
   @Override
   public PersonalCourses getPersonalCourses(String token, String cartId) throws Exception {
     if (!Strings.isNullOrEmpty(token)) {
-      int customerId = customerService.getCustomerIdFromToken(token);
+      int customerId = customerTokenCache.getCustomerId(token);
       return tryGetDataFromCache(token, customerId);
     } else if (!Strings.isNullOrEmpty(cartId)) {
       PersonalCourses personalCourses = new PersonalCourses();
-      MagentoCart magentoCart = (MagentoCart) cartRepository.getGuestCartTotalInfo(cartId).getData();
-
-      personalCourses.setCartItems(
-        Utils.transform(magentoCart.getItems(), item -> item.getExtensionAttributes().getSku())
-      );
+      personalCourses.setCartItems(getGuestCartItems(cartId));
       return personalCourses;
     }
     return new PersonalCourses();
   }
 
+  /*Personal courses of a customer or guest as an index, to tag a listing page with in-cart,
+   * in-wishlist and owned flags in one pass
+   * @param String customer token, String guest cart id
+   * @return PersonalCourseIndex, empty if neither is given */
+  public PersonalCourseIndex getPersonalCourseIndex(String token, String cartId) throws Exception {
+    return PersonalCourseIndex.of(skuRegistry, getPersonalCourses(token, cartId));
+  }
+
+  /*Serve a listing or detail response from CourseFragmentCache: the price independent fragment is built
+   * once from CourseRepository and the adapters (loader), then every request only overlays the cached
+   * prices of its courses on a copy of it
+   * @param fragment key, loader building the adapted fragment, skus of the fragment courses,
+   * overlay copying the fragment with prices applied
+   * @return fragment with current prices */
+  public <T> T getCourseFragment(FragmentKey key, Callable<T> loader,
+                                 Function<T, Collection<String>> skusOf, PriceOverlay<T> overlay) throws Exception {
+    CourseFragmentCache.Fragment<T> fragment = courseFragmentCache.get(key, loader, skusOf);
+    if (fragment.getSkus().isEmpty()) {
+      return overlay.overlay(fragment.getValue(), Collections.emptyMap());
+    }
+    return overlay.overlay(fragment.getValue(), cachedPriceReader.getCachedPrices(fragment.getSkus()));
+  }
+
   private PersonalCourses tryGetDataFromCache(String token,
                                               int customerId) throws Exception {
+    if (parallelPersonalLoad) {
+      return tryGetDataFromCacheConcurrently(token, customerId);
+    }
     PersonalCourses personalCourses = new PersonalCourses();
     getCacheDataOrGetDataFromMagento(personalCourses, COURSES_IN_CART, token, customerId);
     getCacheDataOrGetDataFromMagento(personalCourses, COURSES_IN_WISHLIST, token, customerId);
@@ -108,66 +214,255 @@ public class CourseServiceImpl implements CourseService {
     return personalCourses;
   }
 
+  /*Serve what we can from cache on the request thread, then load the missed sources from Magento
+   * at the same time, so a cold cache costs the slowest call instead of the sum of them.
+   * A source that does not answer within personalLoadTimeoutMillis or fails falls back to its expired
+   * cache entry; without one the request fails, a missing source would show e.g. owned courses as
+   * buyable. A load that timed out is not interrupted: requests and refreshes may have joined it, and
+   * it still fills the cache for the next request
+   * @param String customer token, int customer id
+   * @return PersonalCourses merged from cache and Magento */
+  private PersonalCourses tryGetDataFromCacheConcurrently(String token,
+                                                          int customerId) throws Exception {
+    PersonalCourses personalCourses = new PersonalCourses();
+    Map<CacheConst.CacheName, Future<List<String>>> loads = new EnumMap<>(CacheConst.CacheName.class);
+    for (CacheConst.CacheName cacheName : PERSONAL_CACHE_NAMES) {
+      Cache cache = cacheManager.getCache(cacheName.name());
+      if (!getDataFromCache(personalCourses, cacheName, cache, customerId, token)) {
+        loads.put(cacheName, personalCoursesExecutor.submit(
+          () -> loadPersonalItems(cacheName, cache, customerId, token)));
+      }
+    }
+
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(personalLoadTimeoutMillis);
+    for (Map.Entry<CacheConst.CacheName, Future<List<String>>> load : loads.entrySet()) {
+      try {
+        long remaining = deadline - System.nanoTime();
+        setPersonalItems(personalCourses, load.getKey(), load.getValue().get(remaining, TimeUnit.NANOSECONDS));
+      } catch (TimeoutException e) {
+        log.warn("Load {} from magento timed out after {}ms!!!", load.getKey().name(), personalLoadTimeoutMillis);
+        if (!getFallbackDataFromCache(personalCourses, load.getKey(), customerId)) {
+          cancelAll(loads.values());
+          throw e;
+        }
+      } catch (ExecutionException e) {
+        if (!getFallbackDataFromCache(personalCourses, load.getKey(), customerId)) {
+          cancelAll(loads.values());
+          throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+      }
+    }
+    return personalCourses;
+  }
+
+  /*Skip loads still queued, without interrupting running ones: a running load may be the single-flight
+   * leader of other requests and it fills the cache when it completes */
+  private static void cancelAll(Collection<? extends Future<?>> futures) {
+    for (Future<?> future : futures) {
+      future.cancel(false);
+    }
+  }
+
   private void getCacheDataOrGetDataFromMagento(PersonalCourses personalCourses,
                                                 CacheConst.CacheName cacheName, String token, int customerId) throws Exception {
     Cache cache = cacheManager.getCache(cacheName.name());
-    if (cache != null && cache.get(customerId, PersonalCourseItems.class) != null) {
-      PersonalCourseItems items = cache.get(customerId, PersonalCourseItems.class);
-      long expiredTime = items.getCachedTime() + CacheConst.PERSONAL_CACHE_TTL.toMillis();
-      if (System.currentTimeMillis() > expiredTime) {
-        log.info("Data from cache " + cacheName.name() + " is expired, try get new data from magento!!!");
-        getDataFromMagentoThenPutToCache(cacheName, cache, personalCourses, customerId, token);
-      } else {
-        switch (cacheName) {
-          case COURSES_IN_CART:
-            personalCourses.setCartItems(items.getCourseIdentifies());
-            log.info("get cart items from cache!!!");
-            break;
-          case COURSES_IN_WISHLIST:
-            personalCourses.setWishlistItems(items.getCourseIdentifies());
-            log.info("get wishlist items from cache!!!");
-            break;
-          case COURSES_OWNED:
-            personalCourses.setOwnedItems(items.getCourseIdentifies());
-            log.info("get owned items from cache!!!");
-            break;
+    if (!getDataFromCache(personalCourses, cacheName, cache, customerId, token)) {
+      try {
+        setPersonalItems(personalCourses, cacheName,
+          loadPersonalItems(cacheName, cache, customerId, token));
+      } catch (Exception e) {
+        if (!getFallbackDataFromCache(personalCourses, cacheName, customerId)) {
+          throw e;
         }
       }
+    }
+  }
+
+  /*Set course identifies of cacheName to personalCourses from its cache entry whatever its age,
+   * used when Magento failed or its circuit is open
+   * @return true if the customer has an entry in cache */
+  private boolean getFallbackDataFromCache(PersonalCourses personalCourses,
+                                           CacheConst.CacheName cacheName, int customerId) {
+    Cache cache = cacheManager.getCache(cacheName.name());
+    PersonalCourseItems items = cache == null ? null : cache.get(customerId, PersonalCourseItems.class);
+    if (items == null) {
+      return false;
+    }
+    cacheMetrics.record(cacheName, CacheMetrics.Result.FALLBACK);
+    log.warn("Magento unavailable, serve expired {} items from cache!!!", cacheName.name());
+    setPersonalItems(personalCourses, cacheName, items.getCourseIdentifies());
+    return true;
+  }
+
+  /*Set course identifies of cacheName to personalCourses if cache has an entry younger than the hard TTL.
+   * An entry older than PERSONAL_CACHE_TTL (the soft TTL) is still served, and a background refresh is
+   * scheduled for it. personal-courses.hard-ttl-ms not above the soft TTL turns this off
+   * @return true if personalCourses was filled from cache, false if Magento must be called */
+  private boolean getDataFromCache(PersonalCourses personalCourses,
+                                   CacheConst.CacheName cacheName, Cache cache, int customerId, String token) {
+    PersonalCourseItems items = cache == null ? null : cache.get(customerId, PersonalCourseItems.class);
+    if (items == null) {
+      cacheMetrics.record(cacheName, CacheMetrics.Result.MISS);
+      return false;
+    }
+    long age = System.currentTimeMillis() - items.getCachedTime();
+    if (age > personalHardTtlMillis) {
+      cacheMetrics.record(cacheName, CacheMetrics.Result.EXPIRED);
+      log.info("Data from cache " + cacheName.name() + " is expired, try get new data from magento!!!");
+      return false;
+    }
+    if (age > CacheConst.PERSONAL_CACHE_TTL.toMillis()) {
+      cacheMetrics.record(cacheName, CacheMetrics.Result.STALE);
+      log.info("Data from cache {} is stale, refresh it in background!!!", cacheName.name());
+      scheduleRefresh(cacheName.name() + ":" + customerId,
+        () -> loadPersonalItems(cacheName, cache, customerId, token));
     } else {
-      getDataFromMagentoThenPutToCache(cacheName, cache, personalCourses, customerId, token);
+      cacheMetrics.record(cacheName, CacheMetrics.Result.HIT);
     }
+    setPersonalItems(personalCourses, cacheName, items.getCourseIdentifies());
+    log.info("get {} items from cache!!!", cacheName.name());
+    return true;
   }
 
+  private static void setPersonalItems(PersonalCourses personalCourses,
+                                       CacheConst.CacheName cacheName, List<String> courseIdentifies) {
+    switch (cacheName) {
+      case COURSES_IN_CART:
+        personalCourses.setCartItems(courseIdentifies);
+        break;
+      case COURSES_IN_WISHLIST:
+        personalCourses.setWishlistItems(courseIdentifies);
+        break;
+      case COURSES_OWNED:
+        personalCourses.setOwnedItems(courseIdentifies);
+        break;
+    }
+  }
+
+  /*Load course identifies of cacheName from Magento, sharing one call between concurrent misses
+   * of the same customer
+   * @return list of course sku */
+  private List<String> loadPersonalItems(CacheConst.CacheName cacheName,
+                                         Cache cache, int customerId, String token) throws Exception {
+    return personalLoads.execute(cacheName.name() + ":" + customerId,
+      () -> getDataFromMagentoThenPutToCache(cacheName, cache, customerId, token));
+  }
+
+  /*Reload a personal cache entry from Magento off the request thread. At most one refresh per
+   * key, e.g. (cacheName, customerId), is queued or running at a time
+   * @param key of the cache entry, load of the entry */
+  private void scheduleRefresh(String key, Callable<List<String>> load) {
+    if (!refreshingPersonalKeys.add(key)) {
+      return;
+    }
+    try {
+      personalRefreshExecutor.execute(() -> {
+        try {
+          load.call();
+        } catch (Exception e) {
+          log.warn("Refresh {} failed!!! {}", key, e.getMessage());
+        } finally {
+          refreshingPersonalKeys.remove(key);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      refreshingPersonalKeys.remove(key);
+      log.warn("Refresh {} skipped, refresh queue is full!!!", key);
+    }
+  }
+
+  /*Get guest cart items from GUEST_CART_CACHE with the TTL rules of the customer caches
+   * @param guest cart id
+   * @return list of course sku */
+  private List<String> getGuestCartItems(String cartId) throws Exception {
+    Cache cache = cacheManager.getCache(GUEST_CART_CACHE);
+    if (cache == null && guestCartCacheMissingLogged.compareAndSet(false, true)) {
+      log.warn("Cache {} is not configured, every guest cart request calls Magento!!!", GUEST_CART_CACHE);
+    }
+    PersonalCourseItems items = cache == null ? null : cache.get(cartId, PersonalCourseItems.class);
+    if (items == null) {
+      cacheMetrics.record(GUEST_CART_CACHE, CacheMetrics.Result.MISS);
+      return loadGuestCartItems(cache, cartId);
+    }
+    long age = System.currentTimeMillis() - items.getCachedTime();
+    if (age > personalHardTtlMillis) {
+      cacheMetrics.record(GUEST_CART_CACHE, CacheMetrics.Result.EXPIRED);
+      try {
+        return loadGuestCartItems(cache, cartId);
+      } catch (Exception e) {
+        cacheMetrics.record(GUEST_CART_CACHE, CacheMetrics.Result.FALLBACK);
+        log.warn("Magento unavailable, serve expired guest cart {} from cache!!!", cartId);
+        return items.getCourseIdentifies();
+      }
+    }
+    if (age > CacheConst.PERSONAL_CACHE_TTL.toMillis()) {
+      cacheMetrics.record(GUEST_CART_CACHE, CacheMetrics.Result.STALE);
+      scheduleRefresh(GUEST_CART_CACHE + ":" + cartId, () -> loadGuestCartItems(cache, cartId));
+    } else {
+      cacheMetrics.record(GUEST_CART_CACHE, CacheMetrics.Result.HIT);
+    }
+    return items.getCourseIdentifies();
+  }
+
+  /*Load guest cart items from Magento then put them to GUEST_CART_CACHE
+   * @param cache, guest cart id
+   * @return list of course sku */
+  private List<String> loadGuestCartItems(Cache cache, String cartId) throws Exception {
+    return personalLoads.execute(GUEST_CART_CACHE + ":" + cartId, () -> {
+      long loadStartedAt = System.currentTimeMillis();
+      MagentoCart magentoCart = (MagentoCart) magentoGuards.cart().call(() -> cacheMetrics.recordMagentoCall(
+        "cart", "getGuestCartTotalInfo", () -> cartRepository.getGuestCartTotalInfo(cartId))).getData();
+      List<String> courseIdentifies = Utils.transform(magentoCart.getItems(),
+        item -> skuRegistry.intern(item.getExtensionAttributes().getSku()));
+      if (cache != null) {
+        personalCourseCacheUpdater.putLoadedGuestCart(cache, cartId, courseIdentifies, loadStartedAt);
+      }
+      return courseIdentifies;
+    });
+  }
+
+  /*@return number of personal course loads that joined an in-flight Magento call */
+  public long getCoalescedPersonalLoadCount() {
+    return personalLoads.getCoalescedCount();
+  }
+
+  /*Load course identifies of cacheName from Magento then put them to cache. Does not touch
+   * PersonalCourses, so it is safe to run off the request thread. The result is not cached if a
+   * cart, wishlist or activation event of the customer arrived while it was loading
+   * @return list of course sku, or null if cacheName is not a personal cache */
   @SuppressWarnings("unchecked")
-  private void getDataFromMagentoThenPutToCache(CacheConst.CacheName cacheName,
-                                                Cache cache, PersonalCourses personalCourses, int customerId, String token) throws Exception {
+  private List<String> getDataFromMagentoThenPutToCache(CacheConst.CacheName cacheName,
+                                                        Cache cache, int customerId, String token) throws Exception {
+    long loadStartedAt = System.currentTimeMillis();
     List<String> courseIdentifies = null;
     switch (cacheName) {
       case COURSES_IN_CART:
-        MagentoCart magentoCart = (MagentoCart) cartRepository
-          .getCustomerCartTotalInfo(customerId).getData();
+        MagentoCart magentoCart = (MagentoCart) magentoGuards.cart().call(() -> cacheMetrics.recordMagentoCall(
+          "cart", "getCustomerCartTotalInfo", () -> cartRepository.getCustomerCartTotalInfo(customerId))).getData();
         courseIdentifies = Utils.transform(magentoCart.getItems(),
-          item -> item.getExtensionAttributes().getSku());
-        personalCourses.setCartItems(courseIdentifies);
+          item -> skuRegistry.intern(item.getExtensionAttributes().getSku()));
         log.info("get in cart items from Magento!!!");
         break;
       case COURSES_IN_WISHLIST:
-        List<MagentoWishlistItem> magentoWishlist = (List<MagentoWishlistItem>) wishlistRepository.getWishlist(customerId).getData();
+        List<MagentoWishlistItem> magentoWishlist = (List<MagentoWishlistItem>) magentoGuards.wishlist().call(
+          () -> cacheMetrics.recordMagentoCall("wishlist", "getWishlist",
+            () -> wishlistRepository.getWishlist(customerId))).getData();
         courseIdentifies = Utils.transform(magentoWishlist,
-          item -> item.getMagentoCourse().getSku());
-        personalCourses.setWishlistItems(courseIdentifies);
+          item -> skuRegistry.intern(item.getMagentoCourse().getSku()));
         log.info("get in wishlist items from Magento!!!");
         break;
       case COURSES_OWNED:
-        courseIdentifies = (List<String>) courseRepository.getOwnedCourses(token).getData();
-        personalCourses.setOwnedItems(courseIdentifies);
+        courseIdentifies = skuRegistry.internAll((List<String>) magentoGuards.course().call(
+          () -> cacheMetrics.recordMagentoCall("course", "getOwnedCourses",
+            () -> courseRepository.getOwnedCourses(token))).getData());
         log.info("get owned items from Magento!!!");
         break;
     }
-    if (cache != null && courseIdentifies != null) {
-      cache.put(customerId, new PersonalCourseItems(courseIdentifies, System.currentTimeMillis()));
+    if (cache != null && courseIdentifies != null
+      && personalCourseCacheUpdater.putLoaded(cache, cacheName, customerId, courseIdentifies, loadStartedAt)) {
       log.info("put personalCourseItems to cache" + cacheName.name() + courseIdentifies);
     }
+    return courseIdentifies;
   }
 
 }
@@ -0,0 +1,99 @@
+package vn.edu.topica.eco.api.middleware.cache;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Splitter;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import lombok.AllArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import vn.edu.topica.eco.api.middleware.service.v1.CustomerService;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*Bounded, expiring token -> customer id cache in front of CustomerService.getCustomerIdFromToken.
+ * An entry lives customer-token.cache-ttl-seconds, or less when the token is a JWT whose "exp"
+ * claim comes first. Claims are only used to shorten the entry lifetime: the signature cannot be
+ * verified here, so the customer id always comes from CustomerService.
+ *
+ * Nothing calls revoke() yet: CustomerService, which handles logout, does not know this cache. Until
+ * it does, a token revoked in Magento (logout, password change) keeps resolving to its customer for
+ * up to customer-token.cache-ttl-seconds, which is why the default is only 30 seconds. Raise it only
+ * together with a revoke() call on logout */
+@Component
+@Slf4j
+public class CustomerTokenCache {
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+  private static final Splitter JWT_SPLITTER = Splitter.on('.');
+
+  private final CustomerService customerService;
+  private final long ttlMillis;
+  private final Cache<String, TokenEntry> entries;
+
+  public CustomerTokenCache(CustomerService customerService,
+                            @Value("${customer-token.cache-size:100000}") long maximumSize,
+                            @Value("${customer-token.cache-ttl-seconds:30}") long ttlSeconds) {
+    this.customerService = customerService;
+    this.ttlMillis = TimeUnit.SECONDS.toMillis(ttlSeconds);
+    this.entries = CacheBuilder.newBuilder()
+      .maximumSize(maximumSize)
+      .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+      .build();
+  }
+
+  /*Get customer id of a token from cache, or from CustomerService on a miss
+   * @param String customer token
+   * @return customer id */
+  public int getCustomerId(String token) throws Exception {
+    long now = System.currentTimeMillis();
+    TokenEntry entry = entries.getIfPresent(token);
+    if (entry != null && now < entry.expiresAt) {
+      return entry.customerId;
+    }
+    int customerId = customerService.getCustomerIdFromToken(token);
+    long expiresAt = Math.min(now + ttlMillis, getTokenExpiry(token));
+    if (now < expiresAt) {
+      entries.put(token, new TokenEntry(customerId, expiresAt));
+    }
+    return customerId;
+  }
+
+  /*Drop a revoked token, the next request resolves it through CustomerService again.
+   * To be called by the logout path */
+  public void revoke(String token) {
+    entries.invalidate(token);
+  }
+
+  public long size() {
+    return entries.size();
+  }
+
+  /*Read the "exp" claim of a JWT without verifying it
+   * @return expiry time in millis, or Long.MAX_VALUE if token is not a JWT or has no "exp" */
+  private static long getTokenExpiry(String token) {
+    List<String> parts = JWT_SPLITTER.splitToList(token);
+    if (parts.size() != 3) {
+      return Long.MAX_VALUE;
+    }
+    try {
+      byte[] payload = Base64.getUrlDecoder().decode(parts.get(1));
+      JsonNode exp = MAPPER.readTree(new String(payload, StandardCharsets.UTF_8)).get("exp");
+      return exp != null && exp.canConvertToLong() ? TimeUnit.SECONDS.toMillis(exp.asLong()) : Long.MAX_VALUE;
+    } catch (Exception e) {
+      log.debug("Token is not a readable JWT!!! {}", e.getMessage());
+      return Long.MAX_VALUE;
+    }
+  }
+
+  @AllArgsConstructor
+  private static class TokenEntry {
+    private final int customerId;
+    private final long expiresAt;
+  }
+}
@@ -0,0 +1,145 @@
+package vn.edu.topica.eco.api.middleware.resilience;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/*Bulkhead and circuit breaker around the calls of one Magento repository.
+ * Bulkhead: at most maxConcurrent calls run at once, a call waits acquireTimeoutMillis for a permit.
+ * Circuit breaker: failureThreshold consecutive failures open the circuit, every call is rejected
+ * for openMillis, then one probe call is let through (HALF_OPEN) and its result closes or reopens it.
+ * A probe that fails, throws an Error or is interrupted while waiting for a permit reopens it.
+ * Rejected calls throw MagentoUnavailableException without reaching Magento */
+@Slf4j
+public class MagentoGuard {
+
+  public enum State { CLOSED, HALF_OPEN, OPEN }
+
+  private final String name;
+  private final int maxConcurrent;
+  private final Semaphore permits;
+  private final long acquireTimeoutMillis;
+  private final int failureThreshold;
+  private final long openMillis;
+  private final LongSupplier clock;
+
+  private final AtomicInteger consecutiveFailures = new AtomicInteger();
+  private final AtomicBoolean probeInFlight = new AtomicBoolean();
+  private final AtomicLong rejectedCount = new AtomicLong();
+  private final AtomicLong failedCount = new AtomicLong();
+  private volatile State state = State.CLOSED;
+  private volatile long openedAt;
+
+  /*@param repository name, max concurrent calls, millis to wait for a permit,
+   * consecutive failures that open the circuit, millis the circuit stays open,
+   * clock in millis, System::currentTimeMillis outside of tests */
+  public MagentoGuard(String name, int maxConcurrent, long acquireTimeoutMillis,
+                      int failureThreshold, long openMillis, LongSupplier clock) {
+    this.name = name;
+    this.maxConcurrent = maxConcurrent;
+    this.permits = new Semaphore(maxConcurrent);
+    this.acquireTimeoutMillis = acquireTimeoutMillis;
+    this.failureThreshold = failureThreshold;
+    this.openMillis = openMillis;
+    this.clock = clock;
+  }
+
+  /*Run a repository call through the bulkhead and the circuit breaker
+   * @param the call
+   * @return result of the call */
+  public <T> T call(Callable<T> call) throws Exception {
+    boolean probe = false;
+    if (state != State.CLOSED) {
+      probe = tryStartProbe();
+      if (!probe) {
+        rejectedCount.incrementAndGet();
+        throw new MagentoUnavailableException(name, "circuit open");
+      }
+    }
+    try {
+      boolean acquired;
+      try {
+        acquired = permits.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        if (probe) {
+          onFailure(true);
+        }
+        throw e;
+      }
+      if (!acquired) {
+        rejectedCount.incrementAndGet();
+        throw new MagentoUnavailableException(name, "bulkhead full");
+      }
+      try {
+        T result = call.call();
+        onSuccess(probe);
+        return result;
+      } catch (Throwable e) {
+        onFailure(probe);
+        throw e;
+      } finally {
+        permits.release();
+      }
+    } finally {
+      if (probe) {
+        probeInFlight.set(false);
+      }
+    }
+  }
+
+  /*@return false if a call would be rejected by the open circuit right now */
+  public boolean isCallPermitted() {
+    return state == State.CLOSED || (clock.getAsLong() - openedAt >= openMillis && !probeInFlight.get());
+  }
+
+  private boolean tryStartProbe() {
+    if (clock.getAsLong() - openedAt < openMillis || !probeInFlight.compareAndSet(false, true)) {
+      return false;
+    }
+    state = State.HALF_OPEN;
+    return true;
+  }
+
+  private void onSuccess(boolean probe) {
+    consecutiveFailures.set(0);
+    if (probe) {
+      state = State.CLOSED;
+      log.info("Magento {} circuit closed!!!", name);
+    }
+  }
+
+  private void onFailure(boolean probe) {
+    failedCount.incrementAndGet();
+    if (probe || consecutiveFailures.incrementAndGet() >= failureThreshold) {
+      openedAt = clock.getAsLong();
+      state = State.OPEN;
+      log.warn("Magento {} circuit open for {}ms!!!", name, openMillis);
+    }
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public State getState() {
+    return state;
+  }
+
+  public int getActiveCalls() {
+    return maxConcurrent - permits.availablePermits();
+  }
+
+  public long getRejectedCount() {
+    return rejectedCount.get();
+  }
+
+  public long getFailedCount() {
+    return failedCount.get();
+  }
+}
@@ -0,0 +1,76 @@
+package vn.edu.topica.eco.api.middleware.resilience;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/*One MagentoGuard per Magento repository used by the course and price services, with metrics:
+ *  middleware.magento.guard.state{repository}: 0 closed, 1 half open, 2 open
+ *  middleware.magento.guard.active{repository}: calls running
+ *  middleware.magento.guard.rejected{repository}, middleware.magento.guard.failed{repository} */
+@Component
+public class MagentoGuards {
+
+  private final MagentoGuard cart;
+  private final MagentoGuard wishlist;
+  private final MagentoGuard course;
+  private final MagentoGuard price;
+
+  public MagentoGuards(MeterRegistry registry,
+                       @Value("${magento.guard.max-concurrent:32}") int maxConcurrent,
+                       @Value("${magento.guard.acquire-timeout-ms:50}") long acquireTimeoutMillis,
+                       @Value("${magento.guard.failure-threshold:5}") int failureThreshold,
+                       @Value("${magento.guard.open-ms:10000}") long openMillis) {
+    this.cart = register(registry, new MagentoGuard("cart", maxConcurrent, acquireTimeoutMillis,
+      failureThreshold, openMillis, System::currentTimeMillis));
+    this.wishlist = register(registry, new MagentoGuard("wishlist", maxConcurrent, acquireTimeoutMillis,
+      failureThreshold, openMillis, System::currentTimeMillis));
+    this.course = register(registry, new MagentoGuard("course", maxConcurrent, acquireTimeoutMillis,
+      failureThreshold, openMillis, System::currentTimeMillis));
+    this.price = register(registry, new MagentoGuard("price", maxConcurrent, acquireTimeoutMillis,
+      failureThreshold, openMillis, System::currentTimeMillis));
+  }
+
+  /*Guards built by the caller, e.g. with a manual clock in tests */
+  public MagentoGuards(MeterRegistry registry, MagentoGuard cart, MagentoGuard wishlist,
+                       MagentoGuard course, MagentoGuard price) {
+    this.cart = register(registry, cart);
+    this.wishlist = register(registry, wishlist);
+    this.course = register(registry, course);
+    this.price = register(registry, price);
+  }
+
+  private static MagentoGuard register(MeterRegistry registry, MagentoGuard guard) {
+    Gauge.builder("middleware.magento.guard.state", guard, g -> g.getState().ordinal())
+      .tag("repository", guard.getName())
+      .register(registry);
+    Gauge.builder("middleware.magento.guard.active", guard, MagentoGuard::getActiveCalls)
+      .tag("repository", guard.getName())
+      .register(registry);
+    FunctionCounter.builder("middleware.magento.guard.rejected", guard, MagentoGuard::getRejectedCount)
+      .tag("repository", guard.getName())
+      .register(registry);
+    FunctionCounter.builder("middleware.magento.guard.failed", guard, MagentoGuard::getFailedCount)
+      .tag("repository", guard.getName())
+      .register(registry);
+    return guard;
+  }
+
+  public MagentoGuard cart() {
+    return cart;
+  }
+
+  public MagentoGuard wishlist() {
+    return wishlist;
+  }
+
+  public MagentoGuard course() {
+    return course;
+  }
+
+  public MagentoGuard price() {
+    return price;
+  }
+}
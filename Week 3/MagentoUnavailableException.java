@@ -0,0 +1,17 @@
+package vn.edu.topica.eco.api.middleware.resilience;
+
+/*Thrown instead of calling a Magento repository when its circuit breaker is open or its bulkhead
+ * has no free permit. Callers fall back to cached data when they have some */
+public class MagentoUnavailableException extends Exception {
+
+  private final String repository;
+
+  public MagentoUnavailableException(String repository, String reason) {
+    super("Magento " + repository + " unavailable: " + reason);
+    this.repository = repository;
+  }
+
+  public String getRepository() {
+    return repository;
+  }
+}
@@ -0,0 +1,215 @@
+package vn.edu.topica.eco.api.middleware.cache;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.Striped;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.stereotype.Component;
+import vn.edu.topica.eco.api.middleware.constant.CacheConst.CacheName;
+import vn.edu.topica.eco.api.middleware.model.mobile.v1.course.PersonalCourseItems;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+import static vn.edu.topica.eco.api.middleware.constant.CacheConst.CacheName.*;
+
+/*Apply cart, wishlist and activation events to the cached PersonalCourseItems of a customer, so
+ * COURSES_IN_CART, COURSES_IN_WISHLIST and COURSES_OWNED stay correct without waiting for
+ * PERSONAL_CACHE_TTL. A customer without a cached entry is left alone, the next request loads it.
+ * Magento loads put their result through putLoaded(), which drops a result that was read before
+ * the latest event of the same customer, so an in-flight load cannot undo an event.
+ * Guest carts live in GUEST_CART_CACHE keyed by cart id, with the same rules.
+ *
+ * The event times and the locks are per node. With a TwoTierCacheManager the cached entries are
+ * shared, but an event handled on one node does not stop a load that started earlier on another
+ * node from putting its older result. Such an entry is only corrected by the next event of the
+ * customer or by PERSONAL_CACHE_TTL. Route the events of a customer to the node that serves them,
+ * or keep the event times in the SharedCacheStore, before relying on this across nodes */
+@Component
+@Slf4j
+public class PersonalCourseCacheUpdater {
+
+  /*Cache of guest cart items, keyed by guest cart id*/
+  public static final String GUEST_CART_CACHE = "COURSES_IN_GUEST_CART";
+
+  /*Loads older than this are timed out long before, so their events no longer need to be kept */
+  private static final long EVENT_RETENTION_MINUTES = 5;
+
+  private final CacheManager cacheManager;
+  private final Striped<Lock> locks = Striped.lock(64);
+  private final com.google.common.cache.Cache<String, Long> lastEventTimes = CacheBuilder.newBuilder()
+    .expireAfterWrite(EVENT_RETENTION_MINUTES, TimeUnit.MINUTES)
+    .build();
+
+  public PersonalCourseCacheUpdater(CacheManager cacheManager) {
+    this.cacheManager = cacheManager;
+  }
+
+  /*Course added to cart of a customer */
+  public void onAddedToCart(int customerId, String sku) {
+    addCourses(COURSES_IN_CART, customerId, Collections.singletonList(sku));
+  }
+
+  /*Course removed from cart of a customer */
+  public void onRemovedFromCart(int customerId, String sku) {
+    removeCourses(COURSES_IN_CART, customerId, Collections.singletonList(sku));
+  }
+
+  /*Course added to or removed from wishlist of a customer
+   * @param customer id, course sku, true if the course is in the wishlist after the toggle */
+  public void onWishlistToggled(int customerId, String sku, boolean inWishlist) {
+    if (inWishlist) {
+      addCourses(COURSES_IN_WISHLIST, customerId, Collections.singletonList(sku));
+    } else {
+      removeCourses(COURSES_IN_WISHLIST, customerId, Collections.singletonList(sku));
+    }
+  }
+
+  /*Courses activated for a customer, e.g. from an ActivateSuccessWrapper */
+  public void onCoursesActivated(int customerId, Collection<String> skus) {
+    addCourses(COURSES_OWNED, customerId, skus);
+  }
+
+  /*Order placed by a customer: bought courses are owned and leave the cart */
+  public void onOrderPlaced(int customerId, Collection<String> skus) {
+    addCourses(COURSES_OWNED, customerId, skus);
+    removeCourses(COURSES_IN_CART, customerId, skus);
+  }
+
+  /*Course added to a guest cart */
+  public void onAddedToGuestCart(String cartId, String sku) {
+    applyDelta(GUEST_CART_CACHE, cartId, Collections.singletonList(sku), true);
+  }
+
+  /*Course removed from a guest cart */
+  public void onRemovedFromGuestCart(String cartId, String sku) {
+    applyDelta(GUEST_CART_CACHE, cartId, Collections.singletonList(sku), false);
+  }
+
+  /*Guest logged in and Magento merged the guest cart into the customer cart. The cached guest items
+   * are added to the cached COURSES_IN_CART of the customer and the guest entry is dropped.
+   * If the customer has no cached cart it is left to the next request: the items the customer cart
+   * already had in Magento are unknown here, so the guest items alone would be a wrong cart
+   * @param guest cart id, customer id after login */
+  public void onGuestLogin(String cartId, int customerId) {
+    Cache guestCache = cacheManager.getCache(GUEST_CART_CACHE);
+    PersonalCourseItems guestItems = guestCache == null ? null : guestCache.get(cartId, PersonalCourseItems.class);
+    if (guestItems != null && guestItems.getCourseIdentifies() != null) {
+      addCourses(COURSES_IN_CART, customerId, guestItems.getCourseIdentifies());
+    } else {
+      lastEventTimes.put(key(COURSES_IN_CART.name(), customerId), System.currentTimeMillis());
+    }
+    invalidate(GUEST_CART_CACHE, cartId);
+  }
+
+  /*Add skus to the cached entry of cacheName, if the customer has one */
+  public void addCourses(CacheName cacheName, int customerId, Collection<String> skus) {
+    applyDelta(cacheName.name(), customerId, skus, true);
+  }
+
+  /*Remove skus from the cached entry of cacheName, if the customer has one */
+  public void removeCourses(CacheName cacheName, int customerId, Collection<String> skus) {
+    applyDelta(cacheName.name(), customerId, skus, false);
+  }
+
+  /*Drop the cached entry of cacheName, the next request reloads it from Magento */
+  public void invalidate(CacheName cacheName, int customerId) {
+    invalidate(cacheName.name(), customerId);
+  }
+
+  /*Drop a guest cart entry, the next request reloads it from Magento */
+  public void invalidateGuestCart(String cartId) {
+    invalidate(GUEST_CART_CACHE, cartId);
+  }
+
+  /*Drop every personal cache entry of a customer */
+  public void invalidateAll(int customerId) {
+    invalidate(COURSES_IN_CART, customerId);
+    invalidate(COURSES_IN_WISHLIST, customerId);
+    invalidate(COURSES_OWNED, customerId);
+  }
+
+  /*Put course identifies loaded from Magento, unless an event for the same entry arrived after the
+   * load started
+   * @param cache, cache name, customer id, loaded identifies, time the Magento call started
+   * @return true if the entry was put */
+  public boolean putLoaded(Cache cache, CacheName cacheName, int customerId,
+                           List<String> courseIdentifies, long loadStartedAt) {
+    return putLoaded(cache, cacheName.name(), customerId, courseIdentifies, loadStartedAt);
+  }
+
+  /*putLoaded() for a guest cart
+   * @param cache, guest cart id, loaded identifies, time the Magento call started
+   * @return true if the entry was put */
+  public boolean putLoadedGuestCart(Cache cache, String cartId, List<String> courseIdentifies, long loadStartedAt) {
+    return putLoaded(cache, GUEST_CART_CACHE, cartId, courseIdentifies, loadStartedAt);
+  }
+
+  private boolean putLoaded(Cache cache, String cacheName, Object cacheKey,
+                            List<String> courseIdentifies, long loadStartedAt) {
+    String key = key(cacheName, cacheKey);
+    Lock lock = locks.get(key);
+    lock.lock();
+    try {
+      Long lastEventTime = lastEventTimes.getIfPresent(key);
+      if (lastEventTime != null && lastEventTime >= loadStartedAt) {
+        log.info("Drop {} loaded before the latest event!!!", key);
+        return false;
+      }
+      cache.put(cacheKey, new PersonalCourseItems(courseIdentifies, System.currentTimeMillis()));
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void invalidate(String cacheName, Object cacheKey) {
+    String key = key(cacheName, cacheKey);
+    Lock lock = locks.get(key);
+    lock.lock();
+    try {
+      lastEventTimes.put(key, System.currentTimeMillis());
+      Cache cache = cacheManager.getCache(cacheName);
+      if (cache != null) {
+        cache.evict(cacheKey);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void applyDelta(String cacheName, Object cacheKey, Collection<String> skus, boolean add) {
+    String key = key(cacheName, cacheKey);
+    Lock lock = locks.get(key);
+    lock.lock();
+    try {
+      lastEventTimes.put(key, System.currentTimeMillis());
+      Cache cache = cacheManager.getCache(cacheName);
+      PersonalCourseItems items = cache == null ? null : cache.get(cacheKey, PersonalCourseItems.class);
+      if (items == null) {
+        return;
+      }
+      Set<String> courseIdentifies = items.getCourseIdentifies() == null
+        ? new LinkedHashSet<>()
+        : new LinkedHashSet<>(items.getCourseIdentifies());
+      boolean changed = add ? courseIdentifies.addAll(skus) : courseIdentifies.removeAll(skus);
+      if (changed) {
+        cache.put(cacheKey, new PersonalCourseItems(new ArrayList<>(courseIdentifies), items.getCachedTime()));
+        log.info("{} {} {} in cache {}", add ? "add" : "remove", skus, add ? "to" : "from", key);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private static String key(String cacheName, Object cacheKey) {
+    return cacheName + ":" + cacheKey;
+  }
+}
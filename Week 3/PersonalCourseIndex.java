@@ -0,0 +1,74 @@
+package vn.edu.topica.eco.api.middleware.util;
+
+import vn.edu.topica.eco.api.middleware.model.magento.course.PersonalCourses;
+
+import java.util.List;
+import java.util.function.Function;
+
+/*In-cart, in-wishlist and owned skus of one customer as SkuSets, for tagging course listings
+ * without scanning the PersonalCourses lists once per displayed course. The sets come from
+ * SkuRegistry.setOf(), so while the cached lists do not change they are not rebuilt */
+public final class PersonalCourseIndex {
+
+  public static final int IN_CART = 1;
+  public static final int IN_WISHLIST = 1 << 1;
+  public static final int OWNED = 1 << 2;
+
+  public interface CourseTagger<T> {
+    /*Set the personal flags of one course of a listing */
+    void tag(T course, boolean inCart, boolean inWishlist, boolean owned);
+  }
+
+  private final SkuRegistry registry;
+  private final SkuSet cartItems;
+  private final SkuSet wishlistItems;
+  private final SkuSet ownedItems;
+
+  private PersonalCourseIndex(SkuRegistry registry, SkuSet cartItems, SkuSet wishlistItems, SkuSet ownedItems) {
+    this.registry = registry;
+    this.cartItems = cartItems;
+    this.wishlistItems = wishlistItems;
+    this.ownedItems = ownedItems;
+  }
+
+  /*@param registry, personal courses of a customer or guest
+   * @return new PersonalCourseIndex */
+  public static PersonalCourseIndex of(SkuRegistry registry, PersonalCourses personalCourses) {
+    return new PersonalCourseIndex(registry,
+      registry.setOf(personalCourses.getCartItems()),
+      registry.setOf(personalCourses.getWishlistItems()),
+      registry.setOf(personalCourses.getOwnedItems()));
+  }
+
+  public boolean isInCart(String sku) {
+    return cartItems.contains(sku);
+  }
+
+  public boolean isInWishlist(String sku) {
+    return wishlistItems.contains(sku);
+  }
+
+  public boolean isOwned(String sku) {
+    return ownedItems.contains(sku);
+  }
+
+  /*@param String course sku
+   * @return IN_CART | IN_WISHLIST | OWNED bits of sku, 0 if none */
+  public int flagsOf(String sku) {
+    int id = registry.find(sku);
+    int flags = 0;
+    if (cartItems.contains(id, sku)) flags |= IN_CART;
+    if (wishlistItems.contains(id, sku)) flags |= IN_WISHLIST;
+    if (ownedItems.contains(id, sku)) flags |= OWNED;
+    return flags;
+  }
+
+  /*Tag every course of a page with its flags in one pass, one sku lookup per course
+   * @param page of courses, function reading the sku of a course, tagger setting the flags */
+  public <T> void tag(List<T> courses, Function<T, String> skuOf, CourseTagger<T> tagger) {
+    for (T course : courses) {
+      int flags = flagsOf(skuOf.apply(course));
+      tagger.tag(course, (flags & IN_CART) != 0, (flags & IN_WISHLIST) != 0, (flags & OWNED) != 0);
+    }
+  }
+}
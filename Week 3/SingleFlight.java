@@ -0,0 +1,61 @@
+package vn.edu.topica.eco.api.middleware.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*Coalesce concurrent calls with the same key into one in-flight call.
+ * The first caller of a key runs the loader, callers arriving while it runs wait for
+ * and receive the same result (or the same exception). Once the call completes the key is
+ * released, so nothing is cached here */
+public class SingleFlight<K, V> {
+
+  private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+  private final AtomicLong executedCount = new AtomicLong();
+  private final AtomicLong coalescedCount = new AtomicLong();
+
+  /*Run loader for key, or join the call already running for key
+   * @param key of the call, loader to run if no call is in flight
+   * @return result of the in-flight call */
+  public V execute(K key, Callable<V> loader) throws Exception {
+    CompletableFuture<V> call = new CompletableFuture<>();
+    CompletableFuture<V> running = inFlight.putIfAbsent(key, call);
+    if (running != null) {
+      coalescedCount.incrementAndGet();
+      return await(running);
+    }
+
+    executedCount.incrementAndGet();
+    try {
+      V result = loader.call();
+      call.complete(result);
+      return result;
+    } catch (Throwable e) {
+      call.completeExceptionally(e);
+      throw e;
+    } finally {
+      inFlight.remove(key, call);
+    }
+  }
+
+  private static <V> V await(CompletableFuture<V> running) throws Exception {
+    try {
+      return running.get();
+    } catch (ExecutionException e) {
+      throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+    }
+  }
+
+  /*@return number of calls that actually ran a loader */
+  public long getExecutedCount() {
+    return executedCount.get();
+  }
+
+  /*@return number of calls that joined another in-flight call instead of running a loader */
+  public long getCoalescedCount() {
+    return coalescedCount.get();
+  }
+}
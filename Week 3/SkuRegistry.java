@@ -0,0 +1,116 @@
+package vn.edu.topica.eco.api.middleware.util;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/*Give every course sku a small int id and one canonical String instance.
+ * Ids are dense (0, 1, 2, ...) so sets of skus can be stored as bitsets, see SkuSet.
+ * Only register() and intern() add skus, they are called on skus read from Magento. find() and
+ * SkuSet.of() never register, so skus coming from requests or events do not grow the registry */
+@Component
+public class SkuRegistry {
+
+  private static final int INITIAL_CAPACITY = 1024;
+  private static final long MAX_CACHED_SETS = 100000;
+
+  private final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<>();
+  /*sku by id, grown by copy under the lock. An id is published through ids after its slot is
+   * written, so a reader holding an id always sees its sku in the current array */
+  private volatile String[] skus = new String[INITIAL_CAPACITY];
+  private volatile int size;
+  /*SkuSet of a cached sku list, keyed by the identity of the list (weakKeys compares with ==) */
+  private final Cache<List<String>, SkuSet> sets = CacheBuilder.newBuilder()
+    .weakKeys()
+    .maximumSize(MAX_CACHED_SETS)
+    .build();
+
+  /*@param String course sku
+   * @return id of sku, registering it if needed */
+  public int register(String sku) {
+    Integer id = ids.get(sku);
+    if (id != null) {
+      return id;
+    }
+    synchronized (this) {
+      id = ids.get(sku);
+      if (id == null) {
+        id = size;
+        String[] current = skus;
+        if (id == current.length) {
+          current = Arrays.copyOf(current, current.length * 2);
+        }
+        current[id] = sku;
+        skus = current;
+        size = id + 1;
+        ids.put(sku, id);
+      }
+      return id;
+    }
+  }
+
+  /*@param String course sku
+   * @return id of sku, or -1 if sku was never registered */
+  public int find(String sku) {
+    if (sku == null) {
+      return -1;
+    }
+    Integer id = ids.get(sku);
+    return id == null ? -1 : id;
+  }
+
+  /*@return sku of id */
+  public String skuOf(int id) {
+    if (id < 0 || id >= size) {
+      throw new IndexOutOfBoundsException("Unknown sku id " + id);
+    }
+    return skus[id];
+  }
+
+  /*@param String course sku
+   * @return the canonical instance of sku, shared by every cached list */
+  public String intern(String sku) {
+    return sku == null ? null : skuOf(register(sku));
+  }
+
+  /*@param list of course sku
+   * @return new list of canonical sku instances, or null if skus is null */
+  public List<String> internAll(Collection<String> skus) {
+    if (skus == null) {
+      return null;
+    }
+    List<String> interned = new ArrayList<>(skus.size());
+    for (String sku : skus) {
+      interned.add(intern(sku));
+    }
+    return interned;
+  }
+
+  /*SkuSet of a sku list held by a cache entry, built once per list instance. Cached personal items
+   * are replaced, never changed, so a new entry is a new list and gets a new set, and the set of a
+   * dropped entry goes with its list
+   * @param list of course sku from a cache entry, must not be changed afterwards, may be null
+   * @return SkuSet of skus */
+  public SkuSet setOf(List<String> skus) {
+    if (skus == null || skus.isEmpty()) {
+      return SkuSet.of(this, skus);
+    }
+    SkuSet set = sets.getIfPresent(skus);
+    if (set == null) {
+      set = SkuSet.of(this, skus);
+      sets.put(skus, set);
+    }
+    return set;
+  }
+
+  public int size() {
+    return size;
+  }
+}
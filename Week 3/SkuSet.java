@@ -0,0 +1,78 @@
+package vn.edu.topica.eco.api.middleware.util;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/*Immutable set of course skus stored as a bitset of SkuRegistry ids.
+ * contains() costs one hash lookup and one bit test, whatever the size of the set.
+ * Building a set does not register its skus: a sku unknown to the registry, e.g. one added to a
+ * cached cart by an event, is kept in a small side set and matched by value, so the set stays exact
+ * when the sku is registered later */
+public final class SkuSet {
+
+  private final SkuRegistry registry;
+  private final BitSet ids;
+  private final Set<String> unknownSkus;
+
+  private SkuSet(SkuRegistry registry, BitSet ids, Set<String> unknownSkus) {
+    this.registry = registry;
+    this.ids = ids;
+    this.unknownSkus = unknownSkus;
+  }
+
+  /*@param registry, list of course sku, may be null
+   * @return new SkuSet */
+  public static SkuSet of(SkuRegistry registry, Collection<String> skus) {
+    BitSet ids = new BitSet();
+    Set<String> unknownSkus = null;
+    if (skus != null) {
+      for (String sku : skus) {
+        int id = registry.find(sku);
+        if (id >= 0) {
+          ids.set(id);
+        } else if (sku != null) {
+          if (unknownSkus == null) {
+            unknownSkus = new HashSet<>();
+          }
+          unknownSkus.add(sku);
+        }
+      }
+    }
+    return new SkuSet(registry, ids, unknownSkus == null ? Collections.<String>emptySet() : unknownSkus);
+  }
+
+  public boolean contains(String sku) {
+    return contains(registry.find(sku), sku);
+  }
+
+  /*@param id from SkuRegistry.find(), -1 for an unknown sku, and the sku itself */
+  public boolean contains(int id, String sku) {
+    if (id >= 0 && ids.get(id)) {
+      return true;
+    }
+    return !unknownSkus.isEmpty() && sku != null && unknownSkus.contains(sku);
+  }
+
+  public int size() {
+    return ids.cardinality() + unknownSkus.size();
+  }
+
+  public boolean isEmpty() {
+    return ids.isEmpty() && unknownSkus.isEmpty();
+  }
+
+  /*@return skus of this set, registered ones in id order, then the unknown ones */
+  public List<String> toList() {
+    List<String> skus = new ArrayList<>(size());
+    for (int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1)) {
+      skus.add(registry.skuOf(id));
+    }
+    skus.addAll(unknownSkus);
+    return skus;
+  }
+}
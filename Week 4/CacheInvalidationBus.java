@@ -0,0 +1,29 @@
+package vn.edu.topica.eco.api.middleware.cache.twotier;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.io.Serializable;
+import java.util.function.Consumer;
+
+/*Carries invalidation messages between middleware nodes, so a write on one node drops the
+ * near cache entry of the same key on every other node */
+public interface CacheInvalidationBus {
+
+  void publish(Invalidation invalidation);
+
+  void subscribe(Consumer<Invalidation> listener);
+
+  @Data
+  @NoArgsConstructor
+  @AllArgsConstructor
+  class Invalidation implements Serializable {
+
+    /*Node that wrote the key, it has already updated its own near cache */
+    private String sourceNodeId;
+    private String cacheName;
+    /*Written key, or null when the whole cache was cleared */
+    private Object key;
+  }
+}
@@ -0,0 +1,14 @@
+package vn.edu.topica.eco.api.middleware.service.v1;
+
+import vn.edu.topica.eco.api.middleware.model.magento.course.CoursePrice;
+
+import java.util.Collection;
+import java.util.Map;
+
+/*Read side of the price cache, for services overlaying prices on cached responses */
+public interface CachedPriceReader {
+
+  /*@param list of course sku
+   * @return usable cached CoursePrice by sku, skus without one are missing */
+  Map<String, CoursePrice> getCachedPrices(Collection<String> skus);
+}
@@ -0,0 +1,32 @@
+package vn.edu.topica.eco.api.middleware.cache.twotier;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/*Local stand-in for the invalidation bus, delivers every message to every subscriber on the
+ * publishing thread. Used in tests and single-node setups, enabled by
+ * cache.two-tier.shared-store=in-memory */
+@Slf4j
+public class InMemoryCacheInvalidationBus implements CacheInvalidationBus {
+
+  private final List<Consumer<Invalidation>> listeners = new CopyOnWriteArrayList<>();
+
+  @Override
+  public void publish(Invalidation invalidation) {
+    for (Consumer<Invalidation> listener : listeners) {
+      try {
+        listener.accept(invalidation);
+      } catch (RuntimeException e) {
+        log.error("Deliver cache invalidation {} failed!!! {}", invalidation, e.getMessage());
+      }
+    }
+  }
+
+  @Override
+  public void subscribe(Consumer<Invalidation> listener) {
+    listeners.add(listener);
+  }
+}
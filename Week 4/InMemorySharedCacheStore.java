@@ -0,0 +1,89 @@
+package vn.edu.topica.eco.api.middleware.cache.twotier;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import lombok.AllArgsConstructor;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/*Local stand-in for the shared store, used in tests and single-node setups, enabled by
+ * cache.two-tier.shared-store=in-memory. Several TwoTierCacheManager given the same instance behave
+ * like nodes sharing one store. Each cache holds at most maximumSize entries, least recently used
+ * ones go first, and an entry is dropped when read after its time to live */
+public class InMemorySharedCacheStore implements SharedCacheStore {
+
+  private final long maximumSize;
+  private final ConcurrentMap<String, Cache<Object, Entry>> caches = new ConcurrentHashMap<>();
+
+  /*@param max entries of each cache */
+  public InMemorySharedCacheStore(long maximumSize) {
+    this.maximumSize = maximumSize;
+  }
+
+  @Override
+  public Object get(String cacheName, Object key) {
+    Cache<Object, Entry> cache = cache(cacheName);
+    Entry entry = cache.getIfPresent(key);
+    if (entry == null) {
+      return null;
+    }
+    if (entry.isExpired(System.currentTimeMillis())) {
+      cache.asMap().remove(key, entry);
+      return null;
+    }
+    return entry.value;
+  }
+
+  @Override
+  public void put(String cacheName, Object key, Object value, long ttlMillis) {
+    cache(cacheName).put(key, new Entry(value, System.currentTimeMillis() + ttlMillis));
+  }
+
+  @Override
+  public Object putIfAbsent(String cacheName, Object key, Object value, long ttlMillis) {
+    ConcurrentMap<Object, Entry> cache = cache(cacheName).asMap();
+    long now = System.currentTimeMillis();
+    Entry entry = new Entry(value, now + ttlMillis);
+    while (true) {
+      Entry existing = cache.putIfAbsent(key, entry);
+      if (existing == null) {
+        return null;
+      }
+      if (!existing.isExpired(now)) {
+        return existing.value;
+      }
+      if (cache.replace(key, existing, entry)) {
+        return null;
+      }
+    }
+  }
+
+  @Override
+  public void evict(String cacheName, Object key) {
+    cache(cacheName).invalidate(key);
+  }
+
+  @Override
+  public void clear(String cacheName) {
+    cache(cacheName).invalidateAll();
+  }
+
+  public long size(String cacheName) {
+    return cache(cacheName).size();
+  }
+
+  private Cache<Object, Entry> cache(String cacheName) {
+    return caches.computeIfAbsent(cacheName, name -> CacheBuilder.newBuilder().maximumSize(maximumSize).build());
+  }
+
+  @AllArgsConstructor
+  private static class Entry {
+    private final Object value;
+    private final long expiresAt;
+
+    private boolean isExpired(long now) {
+      return now >= expiresAt;
+    }
+  }
+}
@@ -0,0 +1,85 @@
+package vn.edu.topica.eco.api.middleware.aop;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.expression.Expression;
+import org.springframework.expression.common.LiteralExpression;
+import org.springframework.expression.spel.SpelCompilerMode;
+import org.springframework.expression.spel.SpelParserConfiguration;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+import org.springframework.stereotype.Component;
+import vn.edu.topica.eco.api.middleware.aop.Logging.MaskedParam;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/*Turn the arguments of a method into log text, replacing every @MaskedParam argument by the value of
+ * its maskedSpel evaluated on the argument, e.g. "'size:' + size()" logs "size:20" instead of the list.
+ * The expressions of a method are parsed once and cached. They run in SpEL MIXED compiler mode: after
+ * the first interpreted call they are compiled to bytecode, and fall back to interpreted if the
+ * argument type changes. Masks that fail are logged as MASK_ERROR, never as the raw argument. A
+ * maskedSpel that does not parse is reported once and cached as MASK_ERROR, so it neither fails the
+ * call nor is parsed again */
+@Component
+@Slf4j
+public class MaskedParamEvaluator {
+
+  public static final String MASK_ERROR = "***";
+
+  private static final SpelExpressionParser PARSER = new SpelExpressionParser(
+    new SpelParserConfiguration(SpelCompilerMode.MIXED, MaskedParamEvaluator.class.getClassLoader()));
+  private static final Expression[] NO_MASKS = new Expression[0];
+  private static final Expression UNPARSABLE = new LiteralExpression(MASK_ERROR);
+
+  private final ConcurrentMap<Method, Expression[]> masks = new ConcurrentHashMap<>();
+
+  /*@param method as declared by the target class, arguments of the call
+   * @return text of every argument, masked ones replaced by the value of their expression */
+  public String[] mask(Method method, Object[] args) {
+    Expression[] expressions = masks.computeIfAbsent(method, MaskedParamEvaluator::parse);
+    String[] texts = new String[args.length];
+    for (int i = 0; i < args.length; i++) {
+      Expression expression = i < expressions.length ? expressions[i] : null;
+      texts[i] = expression == null ? String.valueOf(args[i]) : evaluate(expression, args[i]);
+    }
+    return texts;
+  }
+
+  private static String evaluate(Expression expression, Object arg) {
+    if (arg == null) {
+      return "null";
+    }
+    try {
+      return String.valueOf(expression.getValue(arg));
+    } catch (RuntimeException e) {
+      return MASK_ERROR;
+    }
+  }
+
+  /*@return expression per parameter, null for a parameter without @MaskedParam, NO_MASKS if none has it */
+  private static Expression[] parse(Method method) {
+    Annotation[][] parameterAnnotations = method.getParameterAnnotations();
+    Expression[] expressions = new Expression[parameterAnnotations.length];
+    boolean masked = false;
+    for (int i = 0; i < parameterAnnotations.length; i++) {
+      for (Annotation annotation : parameterAnnotations[i]) {
+        if (annotation instanceof MaskedParam) {
+          expressions[i] = parse(method, i, ((MaskedParam) annotation).maskedSpel());
+          masked = true;
+        }
+      }
+    }
+    return masked ? expressions : NO_MASKS;
+  }
+
+  private static Expression parse(Method method, int index, String maskedSpel) {
+    try {
+      return PARSER.parseExpression(maskedSpel);
+    } catch (RuntimeException e) {
+      log.error("Parse @MaskedParam \"{}\" of parameter {} of {} failed, it is logged as {}!!! {}",
+        maskedSpel, index, method, MASK_ERROR, e.getMessage());
+      return UNPARSABLE;
+    }
+  }
+}
@@ -0,0 +1,120 @@
+package vn.edu.topica.eco.api.middleware.aop;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.MDC;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*Log method invocations with masked arguments off the request thread, for the Logging aspect.
+ * Nothing is evaluated when INFO is off for the logger. Otherwise the arguments are turned into text
+ * on the calling thread, so later changes to them cannot leak into the log, and the formatting and
+ * appending run on one writer thread, with the MDC of the calling thread (request id, customer...)
+ * copied over for each entry. When logging.masked-param.queue-size entries are waiting,
+ * new ones are dropped and counted rather than blocking the request */
+@Component
+public class MaskedParamLogger {
+
+  private final MaskedParamEvaluator evaluator;
+  private final BlockingQueue<Invocation> queue;
+  private final AtomicLong droppedCount = new AtomicLong();
+  private final ExecutorService writer = Executors.newSingleThreadExecutor(
+    new ThreadFactoryBuilder().setNameFormat("masked-param-log-%d").setDaemon(true).build());
+
+  public MaskedParamLogger(MaskedParamEvaluator evaluator,
+                           @Value("${logging.masked-param.queue-size:8192}") int queueSize) {
+    this.evaluator = evaluator;
+    this.queue = new ArrayBlockingQueue<>(queueSize);
+    writer.execute(this::drain);
+  }
+
+  /*Queue one invocation for logging at INFO
+   * @param logger of the target class, method as declared by the target class, arguments of the call */
+  public void logInvocation(Logger logger, Method method, Object[] args) {
+    if (!logger.isInfoEnabled()) {
+      return;
+    }
+    if (!queue.offer(new Invocation(logger, method.getName(), evaluator.mask(method, args),
+      MDC.getCopyOfContextMap()))) {
+      droppedCount.incrementAndGet();
+    }
+  }
+
+  public long getDroppedCount() {
+    return droppedCount.get();
+  }
+
+  public int getPendingCount() {
+    return queue.size();
+  }
+
+  private void drain() {
+    try {
+      while (!Thread.currentThread().isInterrupted()) {
+        Invocation invocation = queue.take();
+        try {
+          invocation.write();
+        } catch (RuntimeException e) {
+          droppedCount.incrementAndGet();
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    writer.shutdownNow();
+    List<Invocation> remaining = new ArrayList<>();
+    queue.drainTo(remaining);
+    for (Invocation invocation : remaining) {
+      invocation.write();
+    }
+  }
+
+  private static class Invocation {
+    private final Logger logger;
+    private final String methodName;
+    private final String[] args;
+    private final Map<String, String> context;
+
+    private Invocation(Logger logger, String methodName, String[] args, Map<String, String> context) {
+      this.logger = logger;
+      this.methodName = methodName;
+      this.args = args;
+      this.context = context;
+    }
+
+    /*Write with the MDC of the calling thread, then put back the MDC of the writing thread */
+    private void write() {
+      Map<String, String> previous = MDC.getCopyOfContextMap();
+      setContext(context);
+      try {
+        logger.info("Call {} with params {}", methodName, Arrays.toString(args));
+      } finally {
+        setContext(previous);
+      }
+    }
+
+    private static void setContext(Map<String, String> context) {
+      if (context == null) {
+        MDC.clear();
+      } else {
+        MDC.setContextMap(context);
+      }
+    }
+  }
+}
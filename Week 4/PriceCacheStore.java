@@ -0,0 +1,204 @@
+package vn.edu.topica.eco.api.middleware.cache;
+
+import com.google.common.base.Strings;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang.exception.ExceptionUtils;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.cache.concurrent.ConcurrentMapCache;
+import org.springframework.stereotype.Component;
+import vn.edu.topica.eco.api.middleware.constant.CacheConst;
+import vn.edu.topica.eco.api.middleware.model.magento.course.CoursePrice;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static vn.edu.topica.eco.api.middleware.constant.CacheConst.CacheName.PRICE_CACHE_BLOCK;
+
+/*Per-sku price store on top of PRICE_CACHE_BLOCK. Every course sku is its own cache entry, so a
+ * price update only writes the changed skus instead of the whole catalogue */
+@Component
+@Slf4j
+public class PriceCacheStore {
+
+  private final CacheManager cacheManager;
+  /*Skus written or restored through this store on this node. Skus the cache evicted stay here until
+   * the next snapshot() prunes them */
+  private final Set<String> cachedSkus = ConcurrentHashMap.newKeySet();
+
+  public PriceCacheStore(CacheManager cacheManager) {
+    this.cacheManager = cacheManager;
+  }
+
+  /*Get a cached price by course sku
+   * @param String course sku
+   * @return PriceEntry, or null if sku has no cached price */
+  public PriceEntry get(String sku) {
+    if (Strings.isNullOrEmpty(sku)) return null;
+    Cache cache = getCache();
+    if (cache == null) return null;
+    try {
+      return cache.get(sku, PriceEntry.class);
+    } catch (Exception e) {
+      log.error("PRICE_CACHE_BLOCK get cache failed!!! {}", ExceptionUtils.getRootCauseMessage(e));
+      return null;
+    }
+  }
+
+  /*Get cached prices of many skus, resolving the cache once
+   * @param course skus
+   * @return Map of sku to PriceEntry, skus without cached price are absent */
+  public Map<String, PriceEntry> getAll(Collection<String> skus) {
+    Map<String, PriceEntry> entries = new HashMap<>(skus.size() * 2);
+    Cache cache = getCache();
+    if (cache == null) return entries;
+    try {
+      for (String sku : skus) {
+        if (Strings.isNullOrEmpty(sku)) continue;
+        PriceEntry entry = cache.get(sku, PriceEntry.class);
+        if (entry != null) {
+          entries.put(sku, entry);
+        }
+      }
+    } catch (Exception e) {
+      log.error("PRICE_CACHE_BLOCK get cache failed!!! {}", ExceptionUtils.getRootCauseMessage(e));
+    }
+    return entries;
+  }
+
+  /*Put prices to cache, stamping them with the current time. Only the given skus are written
+   * @param list of CoursePrice */
+  public void putAll(Collection<CoursePrice> coursePrices) {
+    putAll(coursePrices, System.currentTimeMillis());
+  }
+
+  /*Put prices to cache, stamping them with cachedTime
+   * @param list of CoursePrice, time the prices were read from Magento */
+  public void putAll(Collection<CoursePrice> coursePrices, long cachedTime) {
+    Cache cache = getCache();
+    if (cache == null) return;
+    long expiresAt = cachedTime + CacheConst.CACHED_COURSE_PRICE_TTL;
+    for (CoursePrice price : coursePrices) {
+      if (price == null || Strings.isNullOrEmpty(price.getSku())) continue;
+      price.setCachedTime(cachedTime);
+      cache.put(price.getSku(), new PriceEntry(price, expiresAt));
+      cachedSkus.add(price.getSku());
+    }
+  }
+
+  /*Put prices read from a snapshot, keeping their own cachedTime. A sku already cached is skipped,
+   * it was written by live traffic and is newer than the snapshot
+   * @param list of CoursePrice with cachedTime set
+   * @return number of prices put */
+  public int restore(Collection<CoursePrice> coursePrices) {
+    Cache cache = getCache();
+    if (cache == null) return 0;
+    int restored = 0;
+    for (CoursePrice price : coursePrices) {
+      if (price == null || Strings.isNullOrEmpty(price.getSku())) continue;
+      PriceEntry entry = new PriceEntry(price, price.getCachedTime() + CacheConst.CACHED_COURSE_PRICE_TTL);
+      if (cache.putIfAbsent(price.getSku(), entry) == null) {
+        cachedSkus.add(price.getSku());
+        restored++;
+      }
+    }
+    return restored;
+  }
+
+  /*Read every price written through this store, for snapshots. Skus the cache no longer holds are
+   * dropped from cachedSkus
+   * @return list of cached CoursePrice, expired ones included */
+  public List<CoursePrice> snapshot() {
+    List<CoursePrice> prices = new ArrayList<>(cachedSkus.size());
+    Cache cache = getCache();
+    if (cache == null) return prices;
+    for (Iterator<String> skus = cachedSkus.iterator(); skus.hasNext(); ) {
+      PriceEntry entry = cache.get(skus.next(), PriceEntry.class);
+      if (entry != null && entry.getPrice() != null) {
+        prices.add(entry.getPrice());
+      } else {
+        skus.remove();
+      }
+    }
+    return prices;
+  }
+
+  /*Value of the PRICE_CACHE_BLOCK size gauge. With a local ConcurrentMapCache it is the number of
+   * cached prices. With any other cache, e.g. TwoTierCache whose native map is only the near tier,
+   * it is the number of skus this node wrote or restored, pruned of evicted ones at every snapshot(),
+   * not the size of the shared catalogue
+   * @return number of cached prices as described */
+  public int size() {
+    Cache cache = getCache();
+    if (cache instanceof ConcurrentMapCache) {
+      return ((ConcurrentMapCache) cache).getNativeCache().size();
+    }
+    return cachedSkus.size();
+  }
+
+  /*Resolve PRICE_CACHE_BLOCK once for a batch of reads and writes on the same request
+   * @return new Batch */
+  public Batch batch() {
+    return new Batch(getCache(), cachedSkus);
+  }
+
+  private Cache getCache() {
+    return cacheManager.getCache(PRICE_CACHE_BLOCK.name());
+  }
+
+  public static class Batch {
+
+    private final Cache cache;
+    private final Set<String> cachedSkus;
+
+    private Batch(Cache cache, Set<String> cachedSkus) {
+      this.cache = cache;
+      this.cachedSkus = cachedSkus;
+    }
+
+    /*@param String course sku
+     * @return PriceEntry, or null if sku has no cached price */
+    public PriceEntry get(String sku) {
+      if (cache == null || Strings.isNullOrEmpty(sku)) return null;
+      try {
+        return cache.get(sku, PriceEntry.class);
+      } catch (Exception e) {
+        log.error("PRICE_CACHE_BLOCK get cache failed!!! {}", ExceptionUtils.getRootCauseMessage(e));
+        return null;
+      }
+    }
+
+    /*@param CoursePrice, time the price was read, time the price expires */
+    public void put(CoursePrice price, long cachedTime, long expiresAt) {
+      if (cache == null || Strings.isNullOrEmpty(price.getSku())) return;
+      price.setCachedTime(cachedTime);
+      cache.put(price.getSku(), new PriceEntry(price, expiresAt));
+      cachedSkus.add(price.getSku());
+    }
+  }
+
+  @Data
+  @NoArgsConstructor
+  @AllArgsConstructor
+  public static class PriceEntry implements Serializable {
+
+    private CoursePrice price;
+    private long expiresAt;
+
+    /*@param current time in millis
+     * @return true if this price must be refreshed from Magento */
+    public boolean isExpired(long now) {
+      return now >= expiresAt;
+    }
+  }
+}
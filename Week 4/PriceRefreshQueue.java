@@ -0,0 +1,115 @@
+package vn.edu.topica.eco.api.middleware.cache;
+
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang.exception.ExceptionUtils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*Collect expired course skus from many requests and refresh them in batches off the request thread.
+ * A flush runs when batchSize skus are pending, or maxDelayMillis after the first sku was queued,
+ * whichever comes first. A sku queued several times before a flush is refreshed once, and a sku
+ * queued while its refresh is running is skipped: its price is still expired until that refresh
+ * returns, so requests keep queueing it, and a second Magento call would follow right after */
+@Slf4j
+public class PriceRefreshQueue {
+
+  public interface BatchRefresher {
+    /*Refresh prices of a batch of skus
+    * @param list of course sku, never bigger than batchSize */
+    void refresh(List<String> skus) throws Exception;
+  }
+
+  private final BatchRefresher refresher;
+  private final int batchSize;
+  private final long maxDelayMillis;
+  private final Set<String> pendingSkus = ConcurrentHashMap.newKeySet();
+  /*Skus drained by the running flush, until their batch is refreshed */
+  private final Set<String> inFlightSkus = ConcurrentHashMap.newKeySet();
+  private final AtomicBoolean sizeFlushQueued = new AtomicBoolean();
+  private final AtomicBoolean timedFlushQueued = new AtomicBoolean();
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+    new ThreadFactoryBuilder().setNameFormat("price-refresh-%d").setDaemon(true).build());
+
+  public PriceRefreshQueue(BatchRefresher refresher, int batchSize, long maxDelayMillis) {
+    this.refresher = refresher;
+    this.batchSize = batchSize;
+    this.maxDelayMillis = maxDelayMillis;
+  }
+
+  /*Queue skus for refresh and return at once
+  * @param list of course sku */
+  public void enqueue(Collection<String> skus) {
+    for (String sku : skus) {
+      if (!Strings.isNullOrEmpty(sku) && !inFlightSkus.contains(sku)) {
+        pendingSkus.add(sku);
+      }
+    }
+    try {
+      if (pendingSkus.size() >= batchSize) {
+        if (sizeFlushQueued.compareAndSet(false, true)) {
+          scheduler.execute(() -> {
+            sizeFlushQueued.set(false);
+            flush();
+          });
+        }
+      } else if (timedFlushQueued.compareAndSet(false, true)) {
+        scheduler.schedule(() -> {
+          timedFlushQueued.set(false);
+          flush();
+        }, maxDelayMillis, TimeUnit.MILLISECONDS);
+      }
+    } catch (RejectedExecutionException e) {
+      log.warn("Price refresh queue is shut down, {} skus dropped!!!", pendingSkus.size());
+    }
+  }
+
+  /*@return number of skus waiting for the next flush */
+  public int getPendingCount() {
+    return pendingSkus.size();
+  }
+
+  /*Drain pending skus and refresh them batchSize at a time. Runs on the scheduler thread only */
+  private void flush() {
+    List<String> batch = new ArrayList<>(batchSize);
+    Iterator<String> iterator = pendingSkus.iterator();
+    while (iterator.hasNext()) {
+      String sku = iterator.next();
+      inFlightSkus.add(sku);
+      iterator.remove();
+      batch.add(sku);
+      if (batch.size() == batchSize) {
+        refresh(batch);
+        batch = new ArrayList<>(batchSize);
+      }
+    }
+    if (!batch.isEmpty()) {
+      refresh(batch);
+    }
+  }
+
+  private void refresh(List<String> batch) {
+    try {
+      refresher.refresh(batch);
+    } catch (Exception e) {
+      log.error("Refresh price of {} skus failed!!! {}", batch.size(), ExceptionUtils.getRootCauseMessage(e));
+    } finally {
+      inFlightSkus.removeAll(batch);
+    }
+  }
+
+  public void shutdown() {
+    scheduler.shutdownNow();
+  }
+}
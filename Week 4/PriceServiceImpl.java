@@ -1,51 +1,94 @@
 package vn.edu.topica.eco.api.middleware.service.v1.impl;
 
 import com.google.common.base.Strings;
-import com.google.common.collect.Maps;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.lang.exception.ExceptionUtils;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.cache.Cache;
-import org.springframework.cache.CacheManager;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.util.CollectionUtils;
 import vn.edu.topica.eco.api.middleware.aop.Logging.MaskedParam;
+import vn.edu.topica.eco.api.middleware.cache.CacheMetrics;
+import vn.edu.topica.eco.api.middleware.cache.PriceCacheStore;
+import vn.edu.topica.eco.api.middleware.cache.PriceCacheStore.PriceEntry;
+import vn.edu.topica.eco.api.middleware.cache.PriceRefreshQueue;
 import vn.edu.topica.eco.api.middleware.constant.CacheConst;
 import vn.edu.topica.eco.api.middleware.model.magento.course.CoursePrice;
 import vn.edu.topica.eco.api.middleware.model.magento.course.MagentoCourse;
 import vn.edu.topica.eco.api.middleware.model.support.Response;
 import vn.edu.topica.eco.api.middleware.repository.PriceRepository;
+import vn.edu.topica.eco.api.middleware.resilience.MagentoGuards;
+import vn.edu.topica.eco.api.middleware.service.v1.CachedPriceReader;
 import vn.edu.topica.eco.api.middleware.service.v1.PriceService;
+import vn.edu.topica.eco.api.middleware.util.SingleFlight;
 
+import javax.annotation.PreDestroy;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
+import static vn.edu.topica.eco.api.middleware.cache.CacheMetrics.Result.*;
 import static vn.edu.topica.eco.api.middleware.constant.CacheConst.CacheName.PRICE_CACHE_BLOCK;
 
 @Service
 @Slf4j
-public class PriceServiceImpl implements PriceService {
+public class PriceServiceImpl implements PriceService, CachedPriceReader {
 
   private PriceRepository priceRepository;
-  private CacheManager cacheManager;
+  private PriceCacheStore priceCacheStore;
+  private CacheMetrics cacheMetrics;
+  private final MagentoGuards magentoGuards;
+  private final SingleFlight<Set<String>, Boolean> priceLoads = new SingleFlight<>();
+  private final PriceRefreshQueue priceRefreshQueue;
 
   @Autowired
   public PriceServiceImpl(PriceRepository priceRepository,
-                          CacheManager cacheManager) {
+                          PriceCacheStore priceCacheStore,
+                          CacheMetrics cacheMetrics,
+                          MagentoGuards magentoGuards,
+                          @Value("${price.async-refresh:true}") boolean asyncRefresh,
+                          @Value("${price.refresh-batch-size:100}") int refreshBatchSize,
+                          @Value("${price.refresh-max-delay-ms:200}") long refreshMaxDelayMillis) {
     this.priceRepository = priceRepository;
-    this.cacheManager = cacheManager;
+    this.priceCacheStore = priceCacheStore;
+    this.cacheMetrics = cacheMetrics;
+    this.magentoGuards = magentoGuards;
+    this.priceRefreshQueue = asyncRefresh
+      ? new PriceRefreshQueue(this::updateExpiredPrices, refreshBatchSize, refreshMaxDelayMillis)
+      : null;
+    cacheMetrics.gaugeSize(PRICE_CACHE_BLOCK, priceCacheStore, PriceCacheStore::size);
+    cacheMetrics.countSingleFlight("prices", priceLoads);
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    if (priceRefreshQueue != null) {
+      priceRefreshQueue.shutdown();
+    }
   }
 
   /* Call Magento API then use method cachePriceData() to update PRICE_CACHE_BLOCK if response has
-   * status code 200 and has none null body
+   * status code 200 and has none null body. Concurrent calls for the same set of skus share
+   * one Magento request
    * @param A list of string of course sku */
   @Override
   public void updateExpiredPrices(List<String> skus) throws Exception {
-    Response magentoResponse = priceRepository.getCoursePrices(skus);
-    if (magentoResponse.isOk()) {
-      cachePriceData((List<CoursePrice>) magentoResponse.getData());
-    }
+    priceLoads.execute(new TreeSet<>(skus), () -> {
+      Response magentoResponse = magentoGuards.price().call(() -> cacheMetrics.recordMagentoCall(
+        "price", "getCoursePrices", () -> priceRepository.getCoursePrices(skus)));
+      if (magentoResponse.isOk()) {
+        cachePriceData((List<CoursePrice>) magentoResponse.getData());
+      }
+      return magentoResponse.isOk();
+    });
+  }
+
+  /*@return number of price refreshes that joined an in-flight Magento call */
+  public long getCoalescedPriceRefreshCount() {
+    return priceLoads.getCoalescedCount();
   }
 
   /*When get course from cache, invoke this method to update course's price from PRICE_CACHE_BLOCK
@@ -53,48 +96,172 @@ public class PriceServiceImpl implements PriceService {
   @Override
   public void updateCoursePrice(@MaskedParam(maskedSpel = "'size:' + size()") List courses)
     throws Exception {
-    List<String> expiredCachedPriceCourseSkus = new ArrayList<>();
-    long expiredTime = System.currentTimeMillis() - CacheConst.CACHED_COURSE_PRICE_TTL;
+    List<PriceConverter> converters = new ArrayList<>(courses.size());
+    List<String> skus = new ArrayList<>(courses.size());
     for (Object course : courses) {
       PriceConverter converter = PriceConverterFactory.getConverter(course);
       if (converter == null) {
         continue;
       }
-      String sku = converter.getSku();
-      CoursePrice coursePrice = getCoursePriceBySku(sku);
-      if (coursePrice == null) {
+      converters.add(converter);
+      skus.add(converter.getSku());
+    }
+
+    List<String> expiredCachedPriceCourseSkus = new ArrayList<>();
+    List<PriceConverter> expiredConverters = new ArrayList<>();
+    Map<String, PriceEntry> cachedPrices = priceCacheStore.getAll(skus);
+    long now = System.currentTimeMillis();
+    int hits = 0;
+    for (PriceConverter converter : converters) {
+      PriceEntry priceEntry = cachedPrices.get(converter.getSku());
+      if (priceEntry == null) {
         continue;
       }
-      if (expiredTime < coursePrice.getCachedTime()) {
-        converter.updatePrice(coursePrice);
+      if (!priceEntry.isExpired(now)) {
+        converter.updatePrice(priceEntry.getPrice());
+        hits++;
       } else {
         expiredCachedPriceCourseSkus.add(converter.getSku());
+        expiredConverters.add(converter);
       }
     }
-    if (!CollectionUtils.isEmpty(expiredCachedPriceCourseSkus)) {
-      updateExpiredPrices(expiredCachedPriceCourseSkus);
+    recordPriceLookups(hits, converters.size() - cachedPrices.size(), expiredCachedPriceCourseSkus.size());
+    if (!CollectionUtils.isEmpty(expiredCachedPriceCourseSkus) && !refreshExpiredPrices(expiredCachedPriceCourseSkus)) {
+      for (PriceConverter converter : expiredConverters) {
+        converter.updatePrice(cachedPrices.get(converter.getSku()).getPrice());
+      }
+      cacheMetrics.record(PRICE_CACHE_BLOCK, FALLBACK, expiredConverters.size());
+    }
+  }
+
+  /*Refresh expired prices in the background when price.async-refresh is on, courses in the current
+   * response keep the price they were loaded with when the refresh works
+   * @param list of course sku
+   * @return false if Magento failed or its price circuit is open, the caller then serves the
+   * expired cached prices */
+  private boolean refreshExpiredPrices(List<String> skus) {
+    if (priceRefreshQueue != null) {
+      priceRefreshQueue.enqueue(skus);
+      return magentoGuards.price().isCallPermitted();
+    }
+    try {
+      updateExpiredPrices(skus);
+      return true;
+    } catch (Exception e) {
+      log.warn("Refresh {} expired prices failed, serve them from cache!!! {}", skus.size(), e.getMessage());
+      return false;
     }
   }
 
-  /*Get a CoursePrice by course sku from cache map
-   * @param String course sku
-   * @return CoursePrice with key == input sku */
-  private CoursePrice getCoursePriceBySku(String sku) {
-    if (Strings.isNullOrEmpty(sku)) return null;
-    Map<String, CoursePrice> cachedPriceMap = getCachedPriceMap();
-    if (cachedPriceMap == null) return null;
-    return cachedPriceMap.get(sku);
+  /*Typed fast path of updateCoursePrice(): resolve PRICE_CACHE_BLOCK and read the clock once for the
+   * whole page, and write prices straight to the courses without a converter per course
+   * @param a list of MagentoCourse */
+  public void updateMagentoCoursePrices(List<MagentoCourse> courses) throws Exception {
+    PriceCacheStore.Batch cachedPrices = priceCacheStore.batch();
+    long now = System.currentTimeMillis();
+    List<String> expiredCachedPriceCourseSkus = null;
+    List<MagentoCourse> expiredCourses = null;
+    int hits = 0;
+    int misses = 0;
+    for (MagentoCourse course : courses) {
+      PriceEntry priceEntry = cachedPrices.get(course.getSku());
+      if (priceEntry == null) {
+        misses++;
+        continue;
+      }
+      if (!priceEntry.isExpired(now)) {
+        CoursePrice coursePrice = priceEntry.getPrice();
+        course.setFinalPrice(coursePrice.getDiscountPrice());
+        course.setPrice(coursePrice.getOriginalPrice());
+        hits++;
+      } else {
+        if (expiredCachedPriceCourseSkus == null) {
+          expiredCachedPriceCourseSkus = new ArrayList<>();
+          expiredCourses = new ArrayList<>();
+        }
+        expiredCachedPriceCourseSkus.add(course.getSku());
+        expiredCourses.add(course);
+      }
+    }
+    recordPriceLookups(hits, misses, expiredCachedPriceCourseSkus == null ? 0 : expiredCachedPriceCourseSkus.size());
+    if (expiredCachedPriceCourseSkus != null && !refreshExpiredPrices(expiredCachedPriceCourseSkus)) {
+      for (MagentoCourse course : expiredCourses) {
+        CoursePrice coursePrice = cachedPrices.get(course.getSku()).getPrice();
+        course.setFinalPrice(coursePrice.getDiscountPrice());
+        course.setPrice(coursePrice.getOriginalPrice());
+      }
+      cacheMetrics.record(PRICE_CACHE_BLOCK, FALLBACK, expiredCourses.size());
+    }
   }
 
-  /*Get value of PRICE_CACHE_BLOCK with key is PRICE_MAP_KEY, as a Map<String, CoursePrice>
-  * @return a Map or null if any exception been thrown out */
-  private Map<String, CoursePrice> getCachedPriceMap() {
-    Cache cache = cacheManager.getCache(PRICE_CACHE_BLOCK.name());
-    try {
-      return cache.get(PRICE_MAP_KEY, Map.class);
-    } catch (Exception e){
-      log.error("PRICE_CACHE_BLOCK get cache failed!!! {}", ExceptionUtils.getRootCauseMessage(e));
-      return null;
+  /*Cached prices of skus for a serve-time overlay. A cached fragment has no price of its own, so an
+   * expired price is still better than none: with the async refresh queued it is returned and
+   * counted as stale (stale-while-revalidate), and it is returned as a fallback when Magento failed
+   * or its price circuit is open. Only a synchronous refresh that worked replaces it, with the price
+   * read back from the cache
+   * @param list of course sku
+   * @return CoursePrice by sku, skus without a cached price are missing */
+  @Override
+  public Map<String, CoursePrice> getCachedPrices(Collection<String> skus) {
+    Map<String, PriceEntry> cachedPrices = priceCacheStore.getAll(skus);
+    Map<String, CoursePrice> prices = new HashMap<>(cachedPrices.size() * 2);
+    List<String> expiredCachedPriceCourseSkus = new ArrayList<>();
+    long now = System.currentTimeMillis();
+    for (Map.Entry<String, PriceEntry> entry : cachedPrices.entrySet()) {
+      if (entry.getValue().isExpired(now)) {
+        expiredCachedPriceCourseSkus.add(entry.getKey());
+      } else {
+        prices.put(entry.getKey(), entry.getValue().getPrice());
+      }
+    }
+    recordPriceLookups(cachedPrices.size() - expiredCachedPriceCourseSkus.size(),
+      skus.size() - cachedPrices.size(), expiredCachedPriceCourseSkus.size());
+    if (expiredCachedPriceCourseSkus.isEmpty()) {
+      return prices;
+    }
+    if (!refreshExpiredPrices(expiredCachedPriceCourseSkus)) {
+      for (String sku : expiredCachedPriceCourseSkus) {
+        prices.put(sku, cachedPrices.get(sku).getPrice());
+      }
+      cacheMetrics.record(PRICE_CACHE_BLOCK, FALLBACK, expiredCachedPriceCourseSkus.size());
+    } else if (priceRefreshQueue != null) {
+      for (String sku : expiredCachedPriceCourseSkus) {
+        prices.put(sku, cachedPrices.get(sku).getPrice());
+      }
+      cacheMetrics.record(PRICE_CACHE_BLOCK, STALE, expiredCachedPriceCourseSkus.size());
+    } else {
+      long refreshedAt = System.currentTimeMillis();
+      for (Map.Entry<String, PriceEntry> entry : priceCacheStore.getAll(expiredCachedPriceCourseSkus).entrySet()) {
+        if (!entry.getValue().isExpired(refreshedAt)) {
+          prices.put(entry.getKey(), entry.getValue().getPrice());
+        }
+      }
+    }
+    return prices;
+  }
+
+  private void recordPriceLookups(int hits, int misses, int expired) {
+    cacheMetrics.record(PRICE_CACHE_BLOCK, HIT, hits);
+    cacheMetrics.record(PRICE_CACHE_BLOCK, MISS, misses);
+    cacheMetrics.record(PRICE_CACHE_BLOCK, EXPIRED, expired);
+    cacheMetrics.recordExpiredSkus(expired);
+  }
+
+  /*Typed fast path of cacheCoursePrice(): one clock read and one cache lookup for the whole page
+   * @param a list of MagentoCourse */
+  public void cacheMagentoCoursePrices(List<MagentoCourse> courses) {
+    PriceCacheStore.Batch cachedPrices = priceCacheStore.batch();
+    long cachedTime = System.currentTimeMillis();
+    long expiresAt = cachedTime + CacheConst.CACHED_COURSE_PRICE_TTL;
+    for (MagentoCourse course : courses) {
+      if (Strings.isNullOrEmpty(course.getSku())) {
+        continue;
+      }
+      CoursePrice coursePrice = new CoursePrice();
+      coursePrice.setOriginalPrice(course.getPrice());
+      coursePrice.setDiscountPrice(course.getFinalPrice());
+      coursePrice.setSku(course.getSku());
+      cachedPrices.put(coursePrice, cachedTime, expiresAt);
     }
   }
 
@@ -116,40 +283,13 @@ public class PriceServiceImpl implements PriceService {
     cachePriceData(coursePrices);
   }
 
-  /*PRICE_CACHE_BLOCK key*/
-  private static final String PRICE_MAP_KEY = "all_price";
-
-  /*Create a synchronized Map for putting to PRICE_CACHE_BLOCK with key is PRICE_MAP_KEY
-  * @return new Concurrent Map */
-  private synchronized Map<String, CoursePrice> createPricesMap() {
-    synchronized (PRICE_MAP_KEY) {
-      return Maps.newConcurrentMap();
-    }
-  }
-
-  /*Create a Map<String,CoursePrice> from List<CoursePrice> with key is course sku
-  * then put to PRICE_CACHE_BLOCK cache with key PRICE_MAP_KEY
+  /*Put a List<CoursePrice> to PRICE_CACHE_BLOCK, one entry per course sku
   * @param list of CoursePrice */
   private void cachePriceData(List<CoursePrice> coursePrices) {
     if (CollectionUtils.isEmpty(coursePrices)) {
       return;
     }
-
-    Map<String, CoursePrice> cachedMap = getCachedPriceMap();
-    if (cachedMap == null) {
-      cachedMap = createPricesMap();
-    }
-
-    long cachedTime = System.currentTimeMillis();
-    for (CoursePrice price : coursePrices) {
-      price.setCachedTime(cachedTime);
-      cachedMap.put(price.getSku(), price);
-    }
-
-    Cache cache = cacheManager.getCache(PRICE_CACHE_BLOCK.name());
-    if (cache != null) {
-      cache.put(PRICE_MAP_KEY, cachedMap);
-    }
+    priceCacheStore.putAll(coursePrices);
   }
 
   public interface PriceConverter {
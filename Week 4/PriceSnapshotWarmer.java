@@ -0,0 +1,184 @@
+package vn.edu.topica.eco.api.middleware.cache;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang.exception.ExceptionUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import vn.edu.topica.eco.api.middleware.model.magento.course.CoursePrice;
+import vn.edu.topica.eco.api.middleware.service.v1.PriceService;
+
+import javax.annotation.PreDestroy;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*Keep PRICE_CACHE_BLOCK warm across restarts. The price map is written to price.snapshot.path
+ * periodically and on shutdown; on startup the snapshot is loaded back and the expired prices of it
+ * are refreshed from Magento in batches in the background, so a new node serves cached prices at once.
+ * Turned off when price.snapshot.path is empty. Nothing is saved before the snapshot was read back,
+ * so a node stopped or saving while still warming up does not replace it with a partly filled cache.
+ *
+ * File format, big endian: int MAGIC, int VERSION, int count, then per price:
+ * UTF sku, byte null flags, double original price, double discount price, long cachedTime */
+@Component
+@Slf4j
+public class PriceSnapshotWarmer {
+
+  private static final int MAGIC = 0x50524353;
+  private static final int VERSION = 1;
+  private static final int ORIGINAL_PRICE_NULL = 1;
+  private static final int DISCOUNT_PRICE_NULL = 1 << 1;
+
+  private final PriceCacheStore priceCacheStore;
+  private final PriceService priceService;
+  private final Path snapshotPath;
+  private final long intervalSeconds;
+  private final int refreshBatchSize;
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+    new ThreadFactoryBuilder().setNameFormat("price-snapshot-%d").setDaemon(true).build());
+  /*Set once the snapshot was restored, or could not be read and has nothing left to restore */
+  private volatile boolean restoreFinished;
+
+  public PriceSnapshotWarmer(PriceCacheStore priceCacheStore,
+                             PriceService priceService,
+                             @Value("${price.snapshot.path:}") String snapshotPath,
+                             @Value("${price.snapshot.interval-seconds:300}") long intervalSeconds,
+                             @Value("${price.snapshot.refresh-batch-size:100}") int refreshBatchSize) {
+    this.priceCacheStore = priceCacheStore;
+    this.priceService = priceService;
+    this.snapshotPath = Strings.isNullOrEmpty(snapshotPath) ? null : Paths.get(snapshotPath);
+    this.intervalSeconds = intervalSeconds;
+    this.refreshBatchSize = refreshBatchSize;
+  }
+
+  @EventListener(ApplicationReadyEvent.class)
+  public void start() {
+    if (snapshotPath == null) {
+      return;
+    }
+    scheduler.execute(this::warmUp);
+    scheduler.scheduleWithFixedDelay(this::saveQuietly, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    scheduler.shutdownNow();
+    if (snapshotPath != null) {
+      saveQuietly();
+    }
+  }
+
+  public boolean isRestoreFinished() {
+    return restoreFinished;
+  }
+
+  /*Load the snapshot into PRICE_CACHE_BLOCK, then refresh its expired prices batch by batch */
+  void warmUp() {
+    List<CoursePrice> prices;
+    try {
+      prices = load();
+    } catch (IOException e) {
+      log.error("Load price snapshot {} failed!!! {}", snapshotPath, ExceptionUtils.getRootCauseMessage(e));
+      restoreFinished = true;
+      return;
+    }
+    int restored = priceCacheStore.restore(prices);
+    restoreFinished = true;
+    log.info("Restored {} of {} prices from snapshot {}", restored, prices.size(), snapshotPath);
+
+    long now = System.currentTimeMillis();
+    List<String> expiredSkus = new ArrayList<>();
+    for (CoursePrice price : prices) {
+      PriceCacheStore.PriceEntry entry = priceCacheStore.get(price.getSku());
+      if (entry != null && entry.isExpired(now)) {
+        expiredSkus.add(price.getSku());
+      }
+    }
+    for (List<String> batch : Lists.partition(expiredSkus, refreshBatchSize)) {
+      if (Thread.currentThread().isInterrupted()) {
+        return;
+      }
+      try {
+        priceService.updateExpiredPrices(new ArrayList<>(batch));
+      } catch (Exception e) {
+        log.error("Refresh {} restored prices failed!!! {}", batch.size(), ExceptionUtils.getRootCauseMessage(e));
+      }
+    }
+  }
+
+  private void saveQuietly() {
+    if (!restoreFinished) {
+      log.info("Skip saving price snapshot {}, it was not restored yet", snapshotPath);
+      return;
+    }
+    try {
+      save();
+    } catch (IOException e) {
+      log.error("Save price snapshot {} failed!!! {}", snapshotPath, ExceptionUtils.getRootCauseMessage(e));
+    }
+  }
+
+  /*Write every cached price to a temp file, then move it over the snapshot, so a crash while writing
+   * never leaves a truncated snapshot behind */
+  synchronized void save() throws IOException {
+    List<CoursePrice> prices = priceCacheStore.snapshot();
+    if (prices.isEmpty()) {
+      return;
+    }
+    Path tempPath = snapshotPath.resolveSibling(snapshotPath.getFileName() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempPath)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(prices.size());
+      for (CoursePrice price : prices) {
+        int flags = (price.getOriginalPrice() == null ? ORIGINAL_PRICE_NULL : 0)
+          | (price.getDiscountPrice() == null ? DISCOUNT_PRICE_NULL : 0);
+        out.writeUTF(price.getSku());
+        out.writeByte(flags);
+        out.writeDouble(price.getOriginalPrice() == null ? 0 : price.getOriginalPrice());
+        out.writeDouble(price.getDiscountPrice() == null ? 0 : price.getDiscountPrice());
+        out.writeLong(price.getCachedTime());
+      }
+    }
+    Files.move(tempPath, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    log.info("Saved {} prices to snapshot {}", prices.size(), snapshotPath);
+  }
+
+  /*@return prices of the snapshot, empty if there is no snapshot yet */
+  List<CoursePrice> load() throws IOException {
+    if (!Files.exists(snapshotPath)) {
+      return new ArrayList<>();
+    }
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotPath)))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new IOException("Unknown price snapshot format");
+      }
+      int count = in.readInt();
+      List<CoursePrice> prices = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        CoursePrice price = new CoursePrice();
+        price.setSku(in.readUTF());
+        int flags = in.readByte();
+        double originalPrice = in.readDouble();
+        double discountPrice = in.readDouble();
+        price.setOriginalPrice((flags & ORIGINAL_PRICE_NULL) != 0 ? null : originalPrice);
+        price.setDiscountPrice((flags & DISCOUNT_PRICE_NULL) != 0 ? null : discountPrice);
+        price.setCachedTime(in.readLong());
+        prices.add(price);
+      }
+      return prices;
+    }
+  }
+}
@@ -0,0 +1,22 @@
+package vn.edu.topica.eco.api.middleware.cache.twotier;
+
+/*Cache store shared by every middleware node, the second tier of TwoTierCacheManager.
+ * Values are stored as given, implementations backed by a remote store serialize them.
+ * Every write carries the time to live of its entry, so the store never keeps an entry forever */
+public interface SharedCacheStore {
+
+  /*@return stored value, or null if key is absent or expired */
+  Object get(String cacheName, Object key);
+
+  /*@param cache name, key, value, millis the entry lives */
+  void put(String cacheName, Object key, Object value, long ttlMillis);
+
+  /*Put value only if key is absent or expired
+   * @param cache name, key, value, millis the entry lives
+   * @return value already stored, or null if value was put */
+  Object putIfAbsent(String cacheName, Object key, Object value, long ttlMillis);
+
+  void evict(String cacheName, Object key);
+
+  void clear(String cacheName);
+}
@@ -0,0 +1,167 @@
+package vn.edu.topica.eco.api.middleware.cache.twotier;
+
+import org.springframework.cache.support.AbstractValueAdaptingCache;
+import vn.edu.topica.eco.api.middleware.cache.twotier.CacheInvalidationBus.Invalidation;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*Cache with a bounded in-process near tier in front of the SharedCacheStore.
+ * Reads try the near tier, then the shared store, and keep what they found in the near tier.
+ * Writes go to both tiers and publish an Invalidation, so other nodes drop their near copy.
+ * A write or invalidation landing between the shared read and the near put would leave the old
+ * value in the near tier until nearTtl, so every write and invalidation counts in nearWrites and
+ * a read only fills the near tier if the count did not move since before its shared read.
+ * The count is striped by key hash, so steady writes to some keys don't keep every other key
+ * out of the near tier; clearing a whole cache bumps every stripe */
+public class TwoTierCache extends AbstractValueAdaptingCache {
+
+  private static final int NEAR_WRITE_STRIPES = 64;
+
+  private final String name;
+  private final String nodeId;
+  private final com.google.common.cache.Cache<Object, Object> nearCache;
+  private final SharedCacheStore sharedStore;
+  private final long sharedTtlMillis;
+  private final CacheInvalidationBus invalidationBus;
+  /*Bumped after the shared store changed and before the near tier is updated, one per stripe */
+  private final AtomicLongArray nearWrites = new AtomicLongArray(NEAR_WRITE_STRIPES);
+
+  TwoTierCache(String name, String nodeId,
+               com.google.common.cache.Cache<Object, Object> nearCache,
+               SharedCacheStore sharedStore, long sharedTtlMillis,
+               CacheInvalidationBus invalidationBus) {
+    super(true);
+    this.name = name;
+    this.nodeId = nodeId;
+    this.nearCache = nearCache;
+    this.sharedStore = sharedStore;
+    this.sharedTtlMillis = sharedTtlMillis;
+    this.invalidationBus = invalidationBus;
+  }
+
+  @Override
+  public String getName() {
+    return name;
+  }
+
+  @Override
+  public Object getNativeCache() {
+    return nearCache.asMap();
+  }
+
+  @Override
+  protected Object lookup(Object key) {
+    Object value = nearCache.getIfPresent(key);
+    if (value != null) {
+      return value;
+    }
+    long writes = nearWrites.get(stripe(key));
+    value = sharedStore.get(name, key);
+    if (value != null) {
+      fillNear(key, value, writes);
+    }
+    return value;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public <T> T get(Object key, Callable<T> valueLoader) {
+    Object value = lookup(key);
+    if (value != null) {
+      return (T) fromStoreValue(value);
+    }
+    synchronized (this) {
+      value = lookup(key);
+      if (value != null) {
+        return (T) fromStoreValue(value);
+      }
+      T loaded;
+      try {
+        loaded = valueLoader.call();
+      } catch (Exception e) {
+        throw new ValueRetrievalException(key, valueLoader, e);
+      }
+      put(key, loaded);
+      return loaded;
+    }
+  }
+
+  @Override
+  public void put(Object key, Object value) {
+    Object storeValue = toStoreValue(value);
+    sharedStore.put(name, key, storeValue, sharedTtlMillis);
+    countNearWrite(key);
+    nearCache.put(key, storeValue);
+    publish(key);
+  }
+
+  @Override
+  public ValueWrapper putIfAbsent(Object key, Object value) {
+    long writes = nearWrites.get(stripe(key));
+    Object existing = sharedStore.putIfAbsent(name, key, toStoreValue(value), sharedTtlMillis);
+    if (existing != null) {
+      fillNear(key, existing, writes);
+      return toValueWrapper(existing);
+    }
+    countNearWrite(key);
+    nearCache.put(key, toStoreValue(value));
+    publish(key);
+    return null;
+  }
+
+  @Override
+  public void evict(Object key) {
+    sharedStore.evict(name, key);
+    countNearWrite(key);
+    nearCache.invalidate(key);
+    publish(key);
+  }
+
+  @Override
+  public void clear() {
+    sharedStore.clear(name);
+    countNearWrite(null);
+    nearCache.invalidateAll();
+    publish(null);
+  }
+
+  /*Apply an Invalidation published by another node to the near tier only
+   * @param written key, or null to drop the whole near tier */
+  void evictNear(Object key) {
+    countNearWrite(key);
+    if (key == null) {
+      nearCache.invalidateAll();
+    } else {
+      nearCache.invalidate(key);
+    }
+  }
+
+  /*Keep a value read from the shared store in the near tier, unless a write or invalidation
+   * happened since writes was read: the value may be the one it replaced */
+  private void fillNear(Object key, Object value, long writes) {
+    if (nearWrites.get(stripe(key)) == writes) {
+      nearCache.put(key, value);
+    }
+  }
+
+  /*@param written key, or null for all stripes */
+  private void countNearWrite(Object key) {
+    if (key != null) {
+      nearWrites.incrementAndGet(stripe(key));
+      return;
+    }
+    for (int i = 0; i < NEAR_WRITE_STRIPES; i++) {
+      nearWrites.incrementAndGet(i);
+    }
+  }
+
+  private static int stripe(Object key) {
+    int h = key.hashCode();
+    return (h ^ (h >>> 16)) & (NEAR_WRITE_STRIPES - 1);
+  }
+
+  private void publish(Object key) {
+    invalidationBus.publish(new Invalidation(nodeId, name, key));
+  }
+}
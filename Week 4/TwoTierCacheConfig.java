@@ -0,0 +1,60 @@
+package vn.edu.topica.eco.api.middleware.cache.twotier;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.cache.CacheManager;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+
+import java.util.Map;
+
+/*Replace the CacheManager of PriceServiceImpl, CourseServiceImpl and the cache helpers with a
+ * TwoTierCacheManager when cache.two-tier.enabled=true. The application must define the
+ * SharedCacheStore and CacheInvalidationBus beans shared by its nodes, startup fails otherwise.
+ * The in-memory store and bus share nothing between nodes, they are only used when asked for with
+ * cache.two-tier.shared-store=in-memory, for tests and single-node setups, and hold at most
+ * cache.two-tier.in-memory-max-size entries per cache.
+ * Shared entries live cache.two-tier.shared-ttl-seconds, or the seconds given for their cache in
+ * cache.two-tier.shared-ttls, e.g. {COURSES_IN_GUEST_CART: 3600}. Keep the price cache well above
+ * CACHED_COURSE_PRICE_TTL, expired prices are still served when Magento is down */
+@Configuration
+@ConditionalOnProperty(name = "cache.two-tier.enabled", havingValue = "true")
+public class TwoTierCacheConfig {
+
+  @Bean
+  @ConditionalOnMissingBean
+  @ConditionalOnProperty(name = "cache.two-tier.shared-store", havingValue = "in-memory")
+  public SharedCacheStore sharedCacheStore(@Value("${cache.two-tier.in-memory-max-size:100000}") long maximumSize) {
+    return new InMemorySharedCacheStore(maximumSize);
+  }
+
+  @Bean
+  @ConditionalOnMissingBean
+  @ConditionalOnProperty(name = "cache.two-tier.shared-store", havingValue = "in-memory")
+  public CacheInvalidationBus cacheInvalidationBus() {
+    return new InMemoryCacheInvalidationBus();
+  }
+
+  @Bean
+  @Primary
+  public CacheManager twoTierCacheManager(ObjectProvider<SharedCacheStore> sharedCacheStore,
+                                          ObjectProvider<CacheInvalidationBus> cacheInvalidationBus,
+                                          @Value("${cache.two-tier.near-max-size:50000}") long nearMaximumSize,
+                                          @Value("${cache.two-tier.near-ttl-seconds:60}") long nearTtlSeconds,
+                                          @Value("${cache.two-tier.shared-ttl-seconds:86400}") long sharedTtlSeconds,
+                                          @Value("#{${cache.two-tier.shared-ttls:{:}}}") Map<String, Long> sharedTtls) {
+    return new TwoTierCacheManager(
+      sharedCacheStore.getIfAvailable(() -> {
+        throw new IllegalStateException("cache.two-tier.enabled needs a SharedCacheStore bean, "
+          + "or cache.two-tier.shared-store=in-memory for a single node");
+      }),
+      cacheInvalidationBus.getIfAvailable(() -> {
+        throw new IllegalStateException("cache.two-tier.enabled needs a CacheInvalidationBus bean, "
+          + "or cache.two-tier.shared-store=in-memory for a single node");
+      }),
+      nearMaximumSize, nearTtlSeconds, sharedTtlSeconds, sharedTtls);
+  }
+}
@@ -0,0 +1,79 @@
+package vn.edu.topica.eco.api.middleware.cache.twotier;
+
+import com.google.common.cache.CacheBuilder;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import vn.edu.topica.eco.api.middleware.cache.twotier.CacheInvalidationBus.Invalidation;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/*CacheManager of TwoTierCache, a drop-in for the cacheManager.getCache(...) calls of the services.
+ * Every node owns one manager with its own near tiers, all nodes share one SharedCacheStore and
+ * one CacheInvalidationBus */
+public class TwoTierCacheManager implements CacheManager {
+
+  private final String nodeId = UUID.randomUUID().toString();
+  private final SharedCacheStore sharedStore;
+  private final CacheInvalidationBus invalidationBus;
+  private final long nearMaximumSize;
+  private final long nearTtlSeconds;
+  private final long sharedTtlSeconds;
+  private final Map<String, Long> sharedTtlSecondsByCache;
+  private final ConcurrentMap<String, TwoTierCache> caches = new ConcurrentHashMap<>();
+
+  /*@param shared store, invalidation bus, max entries of each near cache,
+   * seconds a near entry lives without invalidation (safety net for a lost message),
+   * seconds a shared entry lives, the same by cache name for the caches that need another one */
+  public TwoTierCacheManager(SharedCacheStore sharedStore, CacheInvalidationBus invalidationBus,
+                             long nearMaximumSize, long nearTtlSeconds,
+                             long sharedTtlSeconds, Map<String, Long> sharedTtlSecondsByCache) {
+    this.sharedStore = sharedStore;
+    this.invalidationBus = invalidationBus;
+    this.nearMaximumSize = nearMaximumSize;
+    this.nearTtlSeconds = nearTtlSeconds;
+    this.sharedTtlSeconds = sharedTtlSeconds;
+    this.sharedTtlSecondsByCache = sharedTtlSecondsByCache == null
+      ? Collections.<String, Long>emptyMap()
+      : sharedTtlSecondsByCache;
+    invalidationBus.subscribe(this::onInvalidation);
+  }
+
+  @Override
+  public Cache getCache(String name) {
+    return caches.computeIfAbsent(name, this::createCache);
+  }
+
+  @Override
+  public Collection<String> getCacheNames() {
+    return Collections.unmodifiableSet(caches.keySet());
+  }
+
+  public String getNodeId() {
+    return nodeId;
+  }
+
+  private TwoTierCache createCache(String name) {
+    com.google.common.cache.Cache<Object, Object> nearCache = CacheBuilder.newBuilder()
+      .maximumSize(nearMaximumSize)
+      .expireAfterWrite(nearTtlSeconds, TimeUnit.SECONDS)
+      .build();
+    long sharedTtlMillis = TimeUnit.SECONDS.toMillis(sharedTtlSecondsByCache.getOrDefault(name, sharedTtlSeconds));
+    return new TwoTierCache(name, nodeId, nearCache, sharedStore, sharedTtlMillis, invalidationBus);
+  }
+
+  private void onInvalidation(Invalidation invalidation) {
+    if (nodeId.equals(invalidation.getSourceNodeId())) {
+      return;
+    }
+    TwoTierCache cache = caches.get(invalidation.getCacheName());
+    if (cache != null) {
+      cache.evictNear(invalidation.getKey());
+    }
+  }
+}